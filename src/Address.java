@@ -0,0 +1,140 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.math.BigInteger;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* An interned address: one instance per distinct public key among the
+ * outputs held by UTXO pools, so two interned addresses are equal exactly
+ * when they are the same object. It is itself the key, so a pooled output
+ * (see UTXOPool.addUTXO) refers to the shared instance instead of its own
+ * copy, at no extra field per output. Each carries a precomputed hash and
+ * the encoded bytes of the key, so hashing and serializing never touch the
+ * BigIntegers again.
+ *
+ * Only outputs entering a UTXOPool are interned; transactions that are
+ * merely hashed, signed or validated are not. The table holds its entries
+ * weakly, so an address is released once no pool refers to it any more.
+ */
+public final class Address extends RSAKey {
+
+   // the value of a key, for lookups in the table
+   private static final class Key {
+      private final BigInteger exponent;
+      private final BigInteger modulus;
+      private final int hash;
+
+      public Key(BigInteger exponent, BigInteger modulus) {
+         this.exponent = exponent;
+         this.modulus = modulus;
+         hash = exponent.hashCode() * 31 + modulus.hashCode();
+      }
+
+      public boolean equals(Object other) {
+         if (!(other instanceof Key))
+            return false;
+         Key k = (Key) other;
+         return hash == k.hash && modulus.equals(k.modulus) && exponent.equals(k.exponent);
+      }
+
+      public int hashCode() {
+         return hash;
+      }
+   }
+
+   // an entry of the table, cleared once its address is unreachable
+   private static final class Ref extends WeakReference<Address> {
+      private final Key key;
+
+      public Ref(Address a, Key key, ReferenceQueue<Address> queue) {
+         super(a, queue);
+         this.key = key;
+      }
+   }
+
+   private static final ConcurrentHashMap<Key, Ref> table = new ConcurrentHashMap<Key, Ref>();
+   private static final ReferenceQueue<Address> cleared = new ReferenceQueue<Address>();
+
+   private final int hash;
+   private final byte[] exponent;
+   private final byte[] modulus;
+
+   private Address(Key k) {
+      super(k.exponent, k.modulus);
+      hash = k.hash;
+      exponent = k.exponent.toByteArray();
+      modulus = k.modulus.toByteArray();
+   }
+
+   // Returns the interned address with the value of <key>, adding it to
+   // the table if there is none yet
+   public static Address intern(RSAKey key) {
+      if (key instanceof Address)
+         return (Address) key;
+      purge();
+      Key k = new Key(key.getExponent(), key.getModulus());
+      Address a = lookup(k);
+      if (a != null)
+         return a;
+      Address created = new Address(k);
+      Ref ref = new Ref(created, k, cleared);
+      while (true) {
+         Ref old = table.putIfAbsent(k, ref);
+         if (old == null)
+            return created;
+         a = old.get();
+         if (a != null)
+            return a;
+         if (table.replace(k, old, ref))
+            return created;
+      }
+   }
+
+   // Returns the interned address with the value of <key>, or null if no
+   // pool holds an output paying it; never adds to the table
+   public static Address find(RSAKey key) {
+      if (key instanceof Address)
+         return (Address) key;
+      return lookup(new Key(key.getExponent(), key.getModulus()));
+   }
+
+   private static Address lookup(Key k) {
+      Ref ref = table.get(k);
+      return ref == null ? null : ref.get();
+   }
+
+   // drops the entries of released addresses
+   private static void purge() {
+      for (Ref ref; (ref = (Ref) cleared.poll()) != null; )
+         table.remove(ref.key, ref);
+   }
+
+   // Returns the number of addresses in the table, including released
+   // ones not purged yet
+   public static int count() {
+      purge();
+      return table.size();
+   }
+
+   // true if <a> and <b> have the same value
+   public static boolean same(RSAKey a, RSAKey b) {
+      if (a == b)
+         return true;
+      if (a instanceof Address && b instanceof Address)
+         return false;
+      return a.getModulus().equals(b.getModulus()) && a.getExponent().equals(b.getExponent());
+   }
+
+   // The encoded exponent and modulus of <key> (BigInteger.toByteArray);
+   // those of an interned address are shared, not to be modified
+   public static byte[] exponentBytes(RSAKey key) {
+      return key instanceof Address ? ((Address) key).exponent : key.getExponent().toByteArray();
+   }
+
+   public static byte[] modulusBytes(RSAKey key) {
+      return key instanceof Address ? ((Address) key).modulus : key.getModulus().toByteArray();
+   }
+
+   public int hashCode() {
+      return hash;
+   }
+}
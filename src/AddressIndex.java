@@ -0,0 +1,115 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/* The UTXOs of a pool grouped by the address they pay, with their count
+ * and total value per address. The index of a layered pool records only
+ * the layer's own changes, like the layer itself: UTXOs added and UTXOs of
+ * the base removed per address, and the resulting change in value. A
+ * balance is then the sum over the layers, a listing the base's listing
+ * with the layer's changes applied (see UTXOPool.getBalance).
+ */
+public class AddressIndex {
+
+   private static class Entry {
+      public final HashSet<UTXO> added = new HashSet<UTXO>();
+      // null in the index of a flat pool
+      public final HashSet<UTXO> removed;
+      public int count;
+      // in base units
+      public long value;
+
+      public Entry(boolean layered) {
+         removed = layered ? new HashSet<UTXO>() : null;
+      }
+
+      public Entry(Entry e) {
+         added.addAll(e.added);
+         removed = e.removed == null ? null : new HashSet<UTXO>(e.removed);
+         count = e.count;
+         value = e.value;
+      }
+
+      public boolean isEmpty() {
+         return added.isEmpty() && (removed == null || removed.isEmpty());
+      }
+   }
+
+   private final HashMap<Address, Entry> H;
+   private final boolean layered;
+
+   // Creates an empty index, for a layered pool if <layered>
+   public AddressIndex(boolean layered) {
+      H = new HashMap<Address, Entry>();
+      this.layered = layered;
+   }
+
+   // Creates a copy of <index>
+   public AddressIndex(AddressIndex index) {
+      H = new HashMap<Address, Entry>();
+      for (Map.Entry<Address, Entry> e : index.H.entrySet())
+         H.put(e.getKey(), new Entry(e.getValue()));
+      layered = index.layered;
+   }
+
+   // Records that the pool gained <ut>, paying <txOut>
+   public void add(UTXO ut, Transaction.Output txOut) {
+      Address k = Address.intern(txOut.address);
+      Entry e = H.get(k);
+      if (e == null) {
+         e = new Entry(layered);
+         H.put(k, e);
+      }
+      e.added.add(ut);
+      e.count++;
+      e.value += Amount.round(txOut.value);
+   }
+
+   // Records that the pool lost <ut>, which paid <txOut>
+   public void remove(UTXO ut, Transaction.Output txOut) {
+      Address k = Address.intern(txOut.address);
+      Entry e = H.get(k);
+      if (e == null) {
+         if (!layered)
+            return;
+         e = new Entry(true);
+         H.put(k, e);
+      }
+      if (!e.added.remove(ut) && layered)
+         e.removed.add(ut);
+      e.count--;
+      e.value -= Amount.round(txOut.value);
+      if (e.isEmpty())
+         H.remove(k);
+   }
+
+   // Returns the change in the number of UTXOs paying <k> this index records
+   public int getCount(Address k) {
+      Entry e = H.get(k);
+      return e == null ? 0 : e.count;
+   }
+
+   // Returns the change in the value paid to <k> this index records, in
+   // base units
+   public long getValue(Address k) {
+      Entry e = H.get(k);
+      return e == null ? 0 : e.value;
+   }
+
+   // Applies this index's changes for <k> to <utxos>, the UTXOs paying <k>
+   // in the base pool
+   public void apply(Address k, Set<UTXO> utxos) {
+      Entry e = H.get(k);
+      if (e == null)
+         return;
+      if (e.removed != null)
+         utxos.removeAll(e.removed);
+      utxos.addAll(e.added);
+   }
+
+   // Returns the number of addresses with changes recorded
+   public int size() {
+      return H.size();
+   }
+}
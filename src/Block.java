@@ -43,6 +43,17 @@ public class Block {
       txs.add(tx);
    }
 
+   /* Replaces the coinbase and the transactions with private copies (see
+    * Transaction.freeze), so changing the objects that were added no longer
+    * changes this block
+    */
+   void freezeTransactions() {
+      coinbase = coinbase.freeze().toTransaction();
+      for (int i = 0; i < txs.size(); i++)
+         if (txs.get(i) != null)
+            txs.set(i, txs.get(i).freeze().toTransaction());
+   }
+
    public byte[] getRawBlock() {
       ArrayList<Byte> rawBlock = new ArrayList<Byte>();
       if (prevBlockHash != null)
@@ -1,6 +1,18 @@
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 /* Block Chain should maintain only limited block nodes to satisfy the functions
    You should not have the all the blocks added to the block chain in memory 
@@ -9,6 +21,35 @@ import java.util.HashMap;
 
 public class BlockChain {
    public static final int CUT_OFF_AGE = 10;
+   // approximate heap cost of a block node and of one utxo entry in its
+   // diff or pool, in bytes, for the memory budget
+   private static final int NODE_OVERHEAD = 256;
+   private static final int UTXO_ENTRY_BYTES = 200;
+   // how many recently connected / rejected block hashes are remembered
+   public static final int KNOWN_BLOCKS = 4096;
+
+   // reasons a block can be rejected for
+   public enum Reason {
+      GENESIS("genesis block"),
+      DUPLICATE("duplicate block"),
+      UNKNOWN_PARENT("unknown parent"),
+      TOO_OLD("height at or below maxHeight - CUT_OFF_AGE"),
+      INVALID_TXS("invalid transactions"),
+      FORK_TOO_DEEP("fork point below the retained window"),
+      // not a rejection: the block waits on a fork below the window until
+      // its branch outgrows the max height block (see enableDeepReorgs)
+      DEEP_FORK_PENDING("stored on a fork below the window");
+
+      private final String description;
+
+      Reason(String description) {
+         this.description = description;
+      }
+
+      public String toString() {
+         return description;
+      }
+   }
 
    // all information required in handling a block in block chain
    private class BlockNode {
@@ -16,33 +57,131 @@ public class BlockChain {
       public BlockNode parent;
       public ArrayList<BlockNode> children;
       public int height;
-      // utxo pool for making a new block on top of this block
-      private UTXOPool uPool;
+      // skip pointers: jump[k] is the ancestor 2^k levels up (jump[0] is
+      // the parent), as far back as the ancestors were in the window
+      public BlockNode[] jump;
+      // once the parent is pruned: the hash of the latest pruned ancestor
+      // that was on the main chain when it was pruned (see undoPrunedBlocks)
+      public byte[] prunedBase;
+      // changes this block made to its parent's utxo pool
+      private BlockDiff diff;
+      // utxo pool on top of this block (see stateOf); never modified once
+      // the node is in the tree, so blocks are validated against it
+      // without holding the chain lock
+      private UTXOPool state;
+      // estimated heap footprint, counted in estimatedBytes
+      private long bytes;
+
+      public BlockNode(Block b, BlockNode parent, BlockDiff diff, UTXOPool state) {
+         this(b, parent, diff, state, parent != null ? parent.height + 1 : 1);
+      }
 
-      public BlockNode(Block b, BlockNode parent, UTXOPool uPool) {
+      public BlockNode(Block b, BlockNode parent, BlockDiff diff, UTXOPool state, int height) {
          this.b = b;
          this.parent = parent;
          children = new ArrayList<BlockNode>();
-         this.uPool = uPool;
-         if (parent != null) {
-            height = parent.height + 1;
+         this.diff = diff;
+         this.state = state;
+         this.height = height;
+         if (parent != null)
             parent.children.add(this);
-         } else {
-            height = 1;
+         // jump[k + 1] = jump[k].jump[k], stopping at pruned nodes
+         ArrayList<BlockNode> up = new ArrayList<BlockNode>();
+         BlockNode a = parent;
+         while (a != null && a.jump != null) {
+            int k = up.size();
+            up.add(a);
+            a = k < a.jump.length ? a.jump[k] : null;
          }
+         jump = up.toArray(new BlockNode[up.size()]);
       }
+   }
+
+   // a block on its way in: validated against its parent's state outside
+   // the chain lock, then inserted under it
+   private class Candidate {
+      public final Block b;
+      public BlockNode parent;
+      public UTXOPool before;
+      public BlockDiff diff;
+      public UTXOPool state;
+      public Reason reason;
+      // set instead of parent if b completes a deep fork that outgrew the
+      // max height block
+      public DeepFork fork;
+      // nothing left to insert: answered from the known-block caches
+      // (cached, not recorded again) or stored as a pending deep fork
+      public boolean done;
+      public boolean cached;
 
-      public UTXOPool getUTXOPoolCopy() {
-         return new UTXOPool(uPool);
+      public Candidate(Block b) {
+         this.b = b;
+      }
+   }
+
+   // a reorg onto a branch forking below the window: planned under the
+   // lock, validated without it, then applied under it unless the chain
+   // moved meanwhile (see checkDeepFork)
+   private class DeepFork {
+      // the chain the plan was made against
+      public final BlockNode tip;
+      public final UTXOPool tipState;
+      public final UndoLog log;
+      public final int forkHeight;
+      // the pending fork blocks, oldest first
+      public final ArrayList<Block> path;
+      // main chain block hashes from the tip down to above the fork point
+      public final ArrayList<ByteArrayWrapper> undoHashes;
+      // set by validateDeepFork: the records undone and, per fork block,
+      // its diff and state; or the first invalid block; or a disk error
+      public ArrayList<UndoLog.Record> undone;
+      public ArrayList<BlockDiff> diffs;
+      public ArrayList<UTXOPool> states;
+      public int invalidFrom = -1;
+      public IOException error;
+
+      public DeepFork(BlockNode tip, UndoLog log, int forkHeight, ArrayList<Block> path) {
+         this.tip = tip;
+         tipState = tip.state;
+         this.log = log;
+         this.forkHeight = forkHeight;
+         this.path = path;
+         undoHashes = new ArrayList<ByteArrayWrapper>();
+         for (int h = tip.height; h > forkHeight; h--)
+            undoHashes.add(log.hashAt(h));
       }
    }
 
 /* member variables */
-   private ArrayList<BlockNode> heads;
+   // guards the tree, the caches and the transaction pools; held only for
+   // structural changes, never while transactions are validated
+   private final Object lock = new Object();
+   // ring buffer of the nodes at each retained height, slot height % size;
+   // holds heights minHeight .. height, i.e. at most retention + 1 levels
+   private ArrayList<ArrayList<BlockNode>> levels;
+   private int minHeight;
+   // blocks at or below maxHeight - retention are dropped / rejected;
+   // CUT_OFF_AGE unless a memory budget adapts it (see setMemoryBudget)
+   private int retention;
+   private long memoryBudget;
+   private int minRetention;
+   private long estimatedBytes;
    private HashMap<ByteArrayWrapper, BlockNode> H;
    private int height;
-   private BlockNode maxHeightBlock;
+   // read without the lock; replaced only once the new tip is complete
+   private volatile BlockNode maxHeightBlock;
+   // the latest published snapshot, null until one is first asked for
+   private volatile ChainSnapshot snapshot;
    private TransactionPool txPool;
+   private OrphanTxPool orphanTxs;
+   private SignatureCache sigCache;
+   private OrphanBlockPool orphanBlocks;
+   private LinkedHashMap<ByteArrayWrapper, Boolean> knownValid;
+   private LinkedHashMap<ByteArrayWrapper, Reason> knownInvalid;
+   // undo records of the main chain and the blocks of forks below the
+   // window; both null unless deep reorgs are enabled
+   private UndoLog undoLog;
+   private LinkedHashMap<ByteArrayWrapper, Block> deepBlocks;
    private BlockNode genesisblock;
    private BlockNode prevProcessedBlock;
    
@@ -51,21 +190,53 @@ public class BlockChain {
     * (reference code provided)
     */
    public BlockChain(Block genesisBlock) {
+      this(genesisBlock, TransactionPool.DEFAULT_MAX_BYTES);
+   }
+
+   /* create an empty block chain with just a genesis block, whose
+    * transaction pool holds at most maxPoolBytes (estimated) of transactions
+    */
+   public BlockChain(Block genesisBlock, long maxPoolBytes) {
+      this(genesisBlock, maxPoolBytes, false);
+   }
+
+   /* same as above, keeping the transaction pool in off-heap memory if
+    * offHeapPool is set (see TransactionPool)
+    */
+   public BlockChain(Block genesisBlock, long maxPoolBytes, boolean offHeapPool) {
       UTXOPool uPool = new UTXOPool();
-      Transaction coinbase = genesisBlock.getCoinbase();
-      UTXO utxoCoinbase = new UTXO (coinbase.getHash(), 0);
-      uPool.addUTXO(utxoCoinbase, coinbase.getOutput(0));
-      BlockNode genesis = new BlockNode (genesisBlock, null, uPool);
+      uPool.enableAddressIndex();
+      BlockDiff diff = BlockDiff.of(genesisBlock, uPool);
+      diff.connect(uPool);
+      BlockNode genesis = new BlockNode (genesisBlock, null, diff, uPool);
       
-      heads = new ArrayList<BlockNode>();
-      heads.add(genesis);
       H = new HashMap<ByteArrayWrapper, BlockNode>();
-      H.put(new ByteArrayWrapper(genesisBlock.getHash()), genesis);
+      retention = CUT_OFF_AGE;
+      levels = new ArrayList<ArrayList<BlockNode>>();
+      for (int i = 0; i <= retention; i++)
+         levels.add(new ArrayList<BlockNode>());
+      addNode(genesis);
       
       height = 1;
+      minHeight = 1;
       maxHeightBlock = genesis;
       genesisblock = genesis;
-      txPool = new TransactionPool();
+      txPool = new TransactionPool(maxPoolBytes, offHeapPool);
+      orphanTxs = new OrphanTxPool();
+      sigCache = new SignatureCache();
+      orphanBlocks = new OrphanBlockPool();
+      knownValid = boundedMap(KNOWN_BLOCKS);
+      knownInvalid = boundedMap(KNOWN_BLOCKS);
+      knownValid.put(new ByteArrayWrapper(genesisBlock.getHash()), Boolean.TRUE);
+   }
+
+   // insertion-ordered map that drops its eldest entry beyond max entries
+   private static <K, V> LinkedHashMap<K, V> boundedMap(final int max) {
+      return new LinkedHashMap<K, V>() {
+         protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > max;
+         }
+      };
    }
 
    /* Get the maximum height block
@@ -83,24 +254,50 @@ public class BlockChain {
 	   return prevProcessedBlock;
    }
    public int getHeight() {
-	   return height;
+	   return maxHeightBlock.height;
    }
    public BlockNode getGenesisBlockNode() {
 	   return genesisblock;
    }
    /* Get the UTXOPool for mining a new block on top of 
-    * max height block
+    * max height block (a layer over its state, so the caller may modify it)
     */
    public UTXOPool getMaxHeightUTXOPool() {
-	   return maxHeightBlock.uPool;
+	   return UTXOPool.layer(maxHeightBlock.state);
    }
    
-   /* Get the transaction pool to mine a new block
+   /* Get the transaction pool to mine a new block. It may lag the max
+    * height block briefly while another thread connects a block.
     */
    public TransactionPool getTransactionPool() {
 	   return txPool;
    }
 
+   /* Get a consistent snapshot of the max height block, its UTXO pool and
+    * the transaction pool (see ChainSnapshot). Once the first snapshot has
+    * been taken, every change to the chain publishes a new one, so this
+    * never takes the chain lock. Changes made directly to the transaction
+    * pool show up with the next change to the chain.
+    */
+   public ChainSnapshot getSnapshot() {
+      ChainSnapshot s = snapshot;
+      if (s != null)
+         return s;
+      synchronized (lock) {
+         if (snapshot == null)
+            snapshot = new ChainSnapshot(0, maxHeightBlock.b, maxHeightBlock.height,
+                  maxHeightBlock.state, txPool.getView());
+         return snapshot;
+      }
+   }
+
+   /* Get the cache of verified signatures used when validating blocks and
+    * transactions; signatures checked ahead of time can be recorded here
+    */
+   public SignatureCache getSignatureCache() {
+	   return sigCache;
+   }
+
    /* Add a block to block chain if it is valid.
     * For validity, all transactions should be valid
     * and block should be at height > (maxHeight - CUT_OFF_AGE).
@@ -108,121 +305,1106 @@ public class BlockChain {
     * (block height 2) if blockChain height is <= CUT_OFF_AGE + 1. 
     * As soon as height > CUT_OFF_AGE + 1, you cannot create a new block at height 2.
     * Return true if block is successfully added
+    *
+    * Blocks seen recently, connected or rejected, are answered from the
+    * known-block caches without any validation work. Those caches are keyed
+    * on the block hash, so a block whose hash is not the hash of its
+    * contents is refused up front, and nothing about it is remembered; a
+    * forged hash can neither poison a verdict nor borrow one. A block whose parent
+    * is unknown is buffered in the orphan block pool (and false returned);
+    * once a block connects, buffered descendants are connected after it,
+    * a generation at a time: siblings are validated in parallel and then
+    * inserted in arrival order.
+    *
+    * Safe to call from several threads at once. The transactions of a
+    * block are validated against its parent's state without holding the
+    * chain lock, so blocks on different forks (or the same block twice)
+    * are checked concurrently; only inserting the node and moving the tip
+    * are serialized.
     */
    public boolean addBlock(Block b) {
-       // IMPLEMENT THIS
+      if (b == null)
+         return false;
+      b.freezeTransactions();
+      if (!hashMatches(b))
+         return false;
+      Reason reason = tryConnect(b);
+      if (reason != null && reason != Reason.DEEP_FORK_PENDING)
+         return false;
+      connectOrphansOf(b);
+      return reason == null;
+   }
+
+   // connects the buffered descendants of b
+   private void connectOrphansOf(Block b) {
+      ArrayList<Block> generation = removeOrphanChildren(b);
+      while (!generation.isEmpty()) {
+         List<Candidate> validated = generation.parallelStream()
+               .map(this::validate)
+               .collect(Collectors.toList());
+         generation = new ArrayList<Block>();
+         for (Candidate c : validated) {
+            Reason r = insert(c);
+            if (r == null || r == Reason.DEEP_FORK_PENDING)
+               generation.addAll(removeOrphanChildren(c.b));
+         }
+      }
+   }
+
+   /* Adds blocks in order, as addBlock would, and returns how many were
+    * connected. A run of blocks that extends the max height block, one
+    * after the other (as in catch-up sync), is validated in one pass over
+    * a single working UTXO view instead of a state per block. Only the
+    * blocks that end up inside the retention window get a node, and with
+    * it a state, derived backwards from the view; the ones below it are
+    * only logged and remembered as connected. A block a run breaks on is
+    * remembered as invalid right away, so it is validated only once.
+    * Other blocks, or a run whose base tip moved meanwhile, go through
+    * addBlock one at a time.
+    * If ready is given, block i is only validated once ready.get(i) is
+    * done, e.g. once its signatures were verified ahead of time.
+    */
+   public int addBlocks(List<Block> blocks, List<? extends Future<?>> ready) {
+      int added = 0;
+      int i = 0;
+      while (i < blocks.size()) {
+         int n = connectRun(blocks, i, ready);
+         if (n == 0) {
+            await(ready, i);
+            if (addBlock(blocks.get(i)))
+               added++;
+            n = 1;
+         } else {
+            added += n;
+         }
+         i += n;
+      }
+      return added;
+   }
+
+   public int addBlocks(List<Block> blocks) {
+      return addBlocks(blocks, null);
+   }
+
+   private static void await(List<? extends Future<?>> ready, int i) {
+      if (ready == null || ready.get(i) == null)
+         return;
+      try {
+         ready.get(i).get();
+      } catch (InterruptedException x) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException x) {
+         // only a head start; the block is validated in full regardless
+      }
+   }
+
+   /* Connects the longest valid run of blocks from blocks[from] that
+    * extends the max height block, as described in addBlocks. Returns its
+    * length, 0 if there is no such run.
+    */
+   private int connectRun(List<Block> blocks, int from, List<? extends Future<?>> ready) {
+      BlockNode tip;
+      UTXOPool base;
+      int end = from;
+      synchronized (lock) {
+         tip = maxHeightBlock;
+         base = tip.state;
+         byte[] prev = tip.b.getHash();
+         while (end < blocks.size()) {
+            Block b = blocks.get(end);
+            if (b == null || b.getHash() == null || b.getPrevBlockHash() == null
+                  || !Arrays.equals(b.getPrevBlockHash(), prev))
+               break;
+            ByteArrayWrapper hash = new ByteArrayWrapper(b.getHash());
+            if (knownValid.containsKey(hash) || knownInvalid.containsKey(hash))
+               break;
+            prev = b.getHash();
+            end++;
+         }
+      }
+      // frozen and hashed off the lock; the run stops short of a forged hash
+      for (int i = from; i < end; i++) {
+         blocks.get(i).freezeTransactions();
+         if (!hashMatches(blocks.get(i))) {
+            end = i;
+            break;
+         }
+      }
+      if (end - from < 2)
+         return 0;
+
+      /* validate the run against one view over the tip's state */
+      UTXOPool view = UTXOPool.layer(base);
+      ArrayList<BlockDiff> diffs = new ArrayList<BlockDiff>();
+      Block invalid = null;
+      for (int i = from; i < end; i++) {
+         await(ready, i);
+         Block b = blocks.get(i);
+         TxHandler handler = new TxHandler(UTXOPool.layer(view), sigCache);
+         if (!handler.connectTxs(b.getTransactions())) {
+            invalid = b;
+            break;
+         }
+         BlockDiff diff = BlockDiff.of(b, view);
+         diff.connect(view);
+         diffs.add(diff);
+      }
+      int n = diffs.size();
+
+      synchronized (lock) {
+         /* the view held the state on top of its parent, whatever the tip
+          * did meanwhile, so the block the run broke on is invalid and
+          * answered from the cache from now on */
+         if (invalid != null)
+            knownInvalid.put(new ByteArrayWrapper(invalid.getHash()), Reason.INVALID_TXS);
+         if (n == 0 || maxHeightBlock != tip)
+            return 0;
+         int last = tip.height + n;
+         int keepFrom = Math.max(tip.height + 1, last - retention);
+         /* states of the retained blocks, newest first: the view itself
+          * for the last, then each one's diff undone on the next */
+         UTXOPool[] states = new UTXOPool[n];
+         UTXOPool state = view;
+         for (int i = n - 1; i >= 0 && tip.height + 1 + i >= keepFrom; i--) {
+            states[i] = state;
+            if (i > 0)
+               state = stateBefore(state, diffs.get(i));
+         }
+         height = last;
+         prune();
+         BlockNode parent = keepFrom == tip.height + 1 && tip.jump != null ? tip : null;
+         for (int i = 0; i < n; i++) {
+            Block b = blocks.get(from + i);
+            int h = tip.height + 1 + i;
+            knownValid.put(new ByteArrayWrapper(b.getHash()), Boolean.TRUE);
+            logConnect(h, b, diffs.get(i));
+            if (h < keepFrom)
+               continue;
+            BlockNode node = new BlockNode(b, parent, diffs.get(i), states[i], h);
+            addNode(node);
+            parent = node;
+         }
+         maxHeightBlock = parent;
+         for (int i = 0; i < n; i++)
+            updateTransactionPool(blocks.get(from + i));
+         if (memoryBudget > 0)
+            adaptRetention();
+         publish();
+      }
+      for (int i = 0; i < n; i++)
+         connectOrphansOf(blocks.get(from + i));
+      return n;
+   }
+
+   private ArrayList<Block> removeOrphanChildren(Block b) {
+      synchronized (lock) {
+         return orphanBlocks.removeChildrenOf(b.getHash());
+      }
+   }
+
+   /* Connects b unless it is a known block, and records the outcome.
+    * Returns null if b was connected, otherwise why not.
+    */
+   private Reason tryConnect(Block b) {
+      return insert(validate(b));
+   }
+
+   /* Finds b's parent under the lock, then validates b's transactions
+    * against the parent's state with the lock released.
+    */
+   private Candidate validate(Block b) {
+      Candidate c = new Candidate(b);
+      synchronized (lock) {
+         ByteArrayWrapper hash = new ByteArrayWrapper(b.getHash());
+         if (knownValid.containsKey(hash) || knownInvalid.containsKey(hash)) {
+            c.reason = knownValid.containsKey(hash) ? Reason.DUPLICATE : knownInvalid.get(hash);
+            c.done = true;
+            c.cached = true;
+            return c;
+         }
+         c.reason = checkBlock(c);
+         if (c.reason != null || c.done)
+            return c;
+      }
+      if (c.fork != null)
+         validateDeepFork(c.fork);
+      else
+         c.reason = checkTransactions(c);
+      return c;
+   }
+
+   /* Inserts a validated candidate, unless the tree moved on in a way
+    * that invalidates its checks, and records the outcome. A deep fork
+    * validated against a tip that is no longer the max height block is
+    * planned and validated again.
+    */
+   private Reason insert(Candidate c) {
+      while (true) {
+         synchronized (lock) {
+            DeepFork f = c.fork;
+            if (f == null || f.invalidFrom >= 0 || (f.tip == maxHeightBlock && f.log == undoLog))
+               return record(c);
+         }
+         c = validate(c.b);
+      }
+   }
+
+   // connects candidate c and records the outcome, under the lock
+   private Reason record(Candidate c) {
+      Reason reason = c.reason;
+      if (reason == null && !c.done)
+         reason = c.fork != null ? deepReorganize(c.fork) : connectBlock(c);
+      if (c.cached)
+         return reason;
+      ByteArrayWrapper hash = new ByteArrayWrapper(c.b.getHash());
+      // a missing parent may still arrive, a duplicate says nothing
+      // about the block, every other reason is final
+      if (reason == null)
+         knownValid.put(hash, Boolean.TRUE);
+      else if (reason == Reason.UNKNOWN_PARENT)
+         orphanBlocks.addBlock(c.b);
+      else if (reason != Reason.DEEP_FORK_PENDING && reason != Reason.DUPLICATE)
+         knownInvalid.put(hash, reason);
+      publish();
+      return reason;
+   }
+
+   /* Publishes a new snapshot if any has been taken and the chain or the
+    * transaction pool changed since the last. Called under the lock at the
+    * end of every change.
+    */
+   private void publish() {
+      ChainSnapshot s = snapshot;
+      if (s == null)
+         return;
+      BlockNode tip = maxHeightBlock;
+      TransactionPool.View txs = txPool.getView();
+      if (s.getMaxHeightBlock() == tip.b && s.getTransactionPool() == txs)
+         return;
+      snapshot = new ChainSnapshot(s.getVersion() + 1, tip.b, tip.height, tip.state, txs);
+   }
+
+   /* Keep undo records of the last maxReorgDepth main chain blocks in dir,
+    * so that a branch forking that deep, below the in-memory window, can
+    * still take over once it outgrows the max height block. Its blocks are
+    * held (not validated) until then; the reorg itself streams the undo
+    * records back from disk and validates the fork without the chain lock,
+    * like any other block. Heap use stays bounded by the window plus the
+    * pending fork blocks. Records exist only for blocks connected from now
+    * on and the main chain blocks still in the window.
+    */
+   public void enableDeepReorgs(File dir, int maxReorgDepth) throws IOException {
+      synchronized (lock) {
+         undoLog = new UndoLog(dir, maxReorgDepth);
+         deepBlocks = boundedMap(2 * (maxReorgDepth + 1));
+         for (BlockNode n : pathFrom(null, maxHeightBlock))
+            undoLog.put(n.height, n.b, n.diff);
+      }
+   }
+
+   // records n, now on the main chain, in the undo log if there is one;
+   // a failing disk turns deep reorgs off
+   private void logConnect(BlockNode n) {
+      logConnect(n.height, n.b, n.diff);
+   }
+
+   private void logConnect(int height, Block b, BlockDiff diff) {
+      if (undoLog == null)
+         return;
+      try {
+         undoLog.put(height, b, diff);
+      } catch (IOException x) {
+         x.printStackTrace(System.err);
+         disableDeepReorgs();
+      }
+   }
+
+   private void disableDeepReorgs() {
+      undoLog.clear();
+      undoLog = null;
+      deepBlocks = null;
+   }
+
+   /* Get the pool of blocks waiting for their parent
+    */
+   public OrphanBlockPool getOrphanBlockPool() {
+      return orphanBlocks;
+   }
+
+   /* Returns the ancestor at the given height of the block with hash
+    * blockHash (the block itself at its own height), or null if the block
+    * is unknown or the height is outside the retained window. O(log n).
+    */
+   public Block getAncestor(byte[] blockHash, int height) {
+      synchronized (lock) {
+         BlockNode n = H.get(new ByteArrayWrapper(blockHash));
+         if (n == null)
+            return null;
+         n = getAncestor(n, height);
+         return n == null ? null : n.b;
+      }
+   }
+
+   /* Returns the latest common ancestor of the blocks with hashes a and b,
+    * or null if either is unknown or they fork below the retained window.
+    * O(log n).
+    */
+   public Block findForkPoint(byte[] a, byte[] b) {
+      synchronized (lock) {
+         BlockNode na = H.get(new ByteArrayWrapper(a));
+         BlockNode nb = H.get(new ByteArrayWrapper(b));
+         if (na == null || nb == null)
+            return null;
+         BlockNode f = findForkPoint(na, nb);
+         return f == null ? null : f.b;
+      }
+   }
+
+   // ancestor of n at height h by following the set bits of the distance
+   private BlockNode getAncestor(BlockNode n, int h) {
+      if (h > n.height || h < minHeight)
+         return null;
+      int dist = n.height - h;
+      for (int k = 0; dist > 0; k++, dist >>>= 1)
+         if ((dist & 1) != 0)
+            n = n.jump[k];
+      return n;
+   }
+
+   // binary lifting: bring both to the same height, then take the largest
+   // jumps that still land on different nodes; the fork is one level up
+   private BlockNode findForkPoint(BlockNode a, BlockNode b) {
+      if (a.height > b.height)
+         a = getAncestor(a, b.height);
+      else
+         b = getAncestor(b, a.height);
+      if (a == null || b == null)
+         return null;
+      if (a == b)
+         return a;
+      for (int k = Math.min(a.jump.length, b.jump.length) - 1; k >= 0; k--) {
+         if (k < a.jump.length && k < b.jump.length
+               && a.jump[k] != b.jump[k] && a.jump[k].jump != null) {
+            a = a.jump[k];
+            b = b.jump[k];
+         }
+      }
+      BlockNode f = a.jump.length > 0 ? a.jump[0] : null;
+      return f != null && f == b.jump[0] && f.jump != null ? f : null;
+   }
+
+   /* Returns why the block with hash blockHash was rejected, or null if it
+    * is not among the recently rejected blocks
+    */
+   public Reason getRejectReason(byte[] blockHash) {
+      synchronized (lock) {
+         return knownInvalid.get(new ByteArrayWrapper(blockHash));
+      }
+   }
+
+   /* Returns true if the block with hash blockHash was connected recently */
+   public boolean isKnownValid(byte[] blockHash) {
+      synchronized (lock) {
+         return knownValid.containsKey(new ByteArrayWrapper(blockHash));
+      }
+   }
+
+   /* Checks candidate c's block against the tree, under the lock, and
+    * finds its parent (or plans a deep reorg). Returns null if its
+    * transactions are to be validated next, otherwise why it is not (or
+    * Reason.DEEP_FORK_PENDING).
+    */
+   private Reason checkBlock(Candidate c) {
+	   Block b = c.b;
 	   
-	   /* list of things to check:
-	    * 1. B is genesis block (if yes, return false) 
+	   /* list of things to check, cheapest first:
+	    * 1. B is genesis block (if yes, reject) 
 	    * 		-- b.getPrevBlockHash() == null
-	    * 2. B's parent is null (if yes, return false) 
+	    * 2. B is already in the chain (if yes, reject)
+	    * 3. B's parent is null (if yes, reject) 
 	    * 		-- H.get(new ByteArrayWrapper(b.getPrevBlockHash())) == null
-	    * 3. Transactions are valid (if invalid, return false)
-	    * 4. if height > CUT_OFF_AGE + 1 (if yes, return false)
+	    * 4. B's height <= maxHeight - CUT_OFF_AGE (if yes, reject)
+	    * 5. Transactions are valid (if invalid, reject)
+	    *    -- see checkTransactions, run without the lock
 	    */
 	  
 	   /* Check 1: B is a genesis block */
-	   if (b.getPrevBlockHash() == null) {
-		   return false;
+	   if (b.getPrevBlockHash() == null || b.getHash() == null) {
+		   return Reason.GENESIS;
+	   }
+
+	   /* Check 2: B was already added */
+	   if (H.containsKey(new ByteArrayWrapper(b.getHash()))) {
+		   return Reason.DUPLICATE;
 	   }
 
-	   /* Check 2: B's parent is null */
+	   /* Check 3: B's parent is null */
 	   BlockNode bParent = H.get(new ByteArrayWrapper(b.getPrevBlockHash()));
 	   if (bParent == null) {
-		   return false; 
+		   if (undoLog != null) {
+			   return checkDeepFork(c);
+		   }
+		   return Reason.UNKNOWN_PARENT;
 	   }
 	   
-	   /* Check 3: All Txs are Valid */
-	   /*use handleTxs to detect double spends and invalid Txs
-	    * if validTx == bTx, then block is valid and should be added.
-	   */
-	   Transaction bTx[] = b.getTransactions().toArray(new Transaction[0]);
-	   
-	   //b's transactions must be based on parent's UTXO pool, not the max height UTXO pool
-	   UTXOPool bParentUTXO = bParent.getUTXOPoolCopy();	    
-  
-	   TxHandler handlemytx = new TxHandler(bParentUTXO);
-	   Transaction validTx[] = handlemytx.handleTxs(bTx);   
-	   	      
-	   /* Comparison: check if bTx is a set of valid transactions. If not, return false */
-	   if (validTx.length != bTx.length) {
-		   return false;
+	   /* Check 4: B would sit at height <= maxHeight - CUT_OFF_AGE
+	    * (the retention window, when a memory budget adapts it) */
+	   if (bParent.height + 1 <= height - retention) {
+		   return Reason.TOO_OLD;
 	   }
 	   
-	   /* Check 4: if blockChain height > CUT_OFF_AGE + 1, do not create new block at height 2 */
-	   //check height test output
-	   //System.out.println("Current Height: " + getHeight());
-	   if (b.getPrevBlockHash() == getGenesisBlockNode().b.getHash() && getHeight() > CUT_OFF_AGE + 1) {
-		   return false;
+	   c.parent = bParent;
+	   c.before = bParent.state;
+	   return null;
+   }
+
+   /* Check 5: All Txs are Valid */
+   /* validate in block order against the parent's UTXO pool
+    * (not the max height UTXO pool), stopping at the first invalid Tx.
+    * The parent's state never changes, so this needs no lock.
+    */
+   private Reason checkTransactions(Candidate c) {
+	   TxHandler handlemytx = new TxHandler(UTXOPool.layer(c.before), sigCache);
+	   if (!handlemytx.connectTxs(c.b.getTransactions())) {
+		   return Reason.INVALID_TXS;
 	   }
 	   
 	   /*After this point, assume all transactions are valid and can proceed to adding blocks*/
 	   
-	   /* add coinbase transactions to updated UTXO pool from handleTxs */
-	   Transaction cbTx = new Transaction(b.getCoinbase());
-	   UTXO cbUTXO = new UTXO(cbTx.getHash(), 0);
-	   /* reassign bParentUTXO before adding the coinbase UTXO,
-	    * since handleTx replaced old UTXOs with new UTXOs.
-	    */
-	   bParentUTXO = handlemytx.getUTXOPool();
-	   bParentUTXO.addUTXO(cbUTXO, cbTx.getOutput(0));
+	   /* the block's diff includes its coinbase */
+	   c.diff = BlockDiff.of(c.b, c.before);
+	   c.state = stateOf(c.before, c.diff);
+	   return null;
+   }
+
+   // the utxo pool on top of a block with <diff>, whose parent's pool is
+   // <before>: a layer holding just the diff, merged with the layers below
+   // as they fill up (see UTXOPool.compact), so a branch shares all but its
+   // own changes with the rest of the tree
+   private static UTXOPool stateOf(UTXOPool before, BlockDiff diff) {
+      UTXOPool uPool = UTXOPool.layer(before);
+      diff.connect(uPool);
+      return UTXOPool.compact(uPool);
+   }
+
+   // the reverse: the utxo pool on top of a block's parent, from the
+   // block's pool <after> and its <diff>
+   private static UTXOPool stateBefore(UTXOPool after, BlockDiff diff) {
+      UTXOPool uPool = UTXOPool.layer(after);
+      diff.disconnect(uPool);
+      return UTXOPool.compact(uPool);
+   }
+
+   /* Adds validated candidate c to the chain, under the lock. Returns null
+    * on success, otherwise why not.
+    */
+   private Reason connectBlock(Candidate c) {
+	   Block b = c.b;
+	   BlockNode bParent = c.parent;
 
-	   /* remove b transactions from txpool */
-	   for (Transaction tx : b.getTransactions()) {
-		   //System.out.println("Removing " + tx);
-		   this.txPool.removeTransaction(tx.getHash()); 
+	   /* the tree may have changed while the Txs were validated:
+	    * repeat checks 2-4 against it */
+	   if (H.containsKey(new ByteArrayWrapper(b.getHash()))) {
+		   return Reason.DUPLICATE;
+	   }
+	   if (H.get(new ByteArrayWrapper(b.getPrevBlockHash())) != bParent) {
+		   /* the parent was pruned, or dropped by a deep reorg */
+		   return Reason.FORK_TOO_DEEP;
+	   }
+	   if (bParent.height + 1 <= height - retention) {
+		   return Reason.TOO_OLD;
 	   }
-	   
 
    	   /* steps to add a block
    	    * make blocknode with block
    	    * update height, maxheightblock
    	    * add to hash
    	    */
-	   BlockNode newBN = new BlockNode(b, bParent, bParentUTXO);
+	   BlockNode newBN = new BlockNode(b, bParent, c.diff, c.state);
 
-	   H.put(new ByteArrayWrapper(b.getHash()), newBN);
 	   if (newBN.height > height) {
-		   this.maxHeightBlock = newBN;
-		   height = newBN.height;
+		   BlockNode oldTip = maxHeightBlock;
+		   if (bParent == oldTip) {
+			   height = newBN.height;
+			   this.maxHeightBlock = newBN;
+			   logConnect(newBN);
+			   updateTransactionPool(b);
+		   } else {
+			   reorganize(newBN);
+		   }
+		   prune();
 	   }
-	   
-	   /* case: height < maxHeight - CUT_OFF_AGE */
-	   /* plan: remove heads such that height >= maxHeight - CUT_OFF_AGE
-	    * 		preserve children if necessary
-	    */
-	   if (heads.get(0).height < height - CUT_OFF_AGE ) {
-		 //ArrayList<BlockNode> headsToRemove = new ArrayList<BlockNode>();
-           ArrayList<BlockNode> newHeadList = new ArrayList<BlockNode>();
-           for (BlockNode a : heads) {
-               if (a.children.size() > 0) {
-                   //headsToRemove.add(a);
-                   for (BlockNode aChild : a.children) {
-                	   //heads.add(aChild);
-                       newHeadList.add(aChild);
-                   }
-               }
-               H.remove(new ByteArrayWrapper(a.b.getHash()));
-           }
-           /*
-           for (BlockNode a : headsToRemove) {
-               heads.remove(a);
-           }
-           */
-           //heads.removeAll(headsToRemove);
-           heads = newHeadList;
+	   /* after pruning, so the level it reuses is already empty */
+	   addNode(newBN);
+	   if (memoryBudget > 0) {
+		   adaptRetention();
 	   }
 	   
 	   //this.prevProcessedBlock = newBN;
 	   	   
-	   return true;
+	   return null;
+   }
+
+   /* Drops every node below height maxHeight - retention, one height level
+    * at a time, so the work done is proportional to the nodes removed.
+    * Children of a dropped node lose their parent link and a dropped node
+    * lets go of its diff, state and skip pointers, so the window only
+    * keeps O(log n) empty shells per live node reachable. (States above it
+    * may still read through to its state until their layers are merged
+    * past it, see UTXOPool.compact.)
+    */
+   private void prune() {
+      dropLevelsBelow(height - retention);
+   }
+
+   private void dropLevelsBelow(int h) {
+      while (minHeight < h) {
+         ArrayList<BlockNode> level = levels.get(minHeight % levels.size());
+         BlockNode main = getAncestor(maxHeightBlock, minHeight);
+         for (BlockNode n : level) {
+            H.remove(new ByteArrayWrapper(n.b.getHash()));
+            estimatedBytes -= n.bytes;
+            for (BlockNode child : n.children) {
+               child.parent = null;
+               child.prunedBase = n == main ? n.b.getHash() : n.prunedBase;
+            }
+            n.children.clear();
+            // skip pointers of live nodes may still reach n, so drop what
+            // it holds; a null jump marks it as pruned
+            n.jump = null;
+            n.diff = null;
+            n.state = null;
+         }
+         level.clear();
+         minHeight++;
+      }
+   }
+
+   // indexes a new node by hash and height and counts its footprint
+   private void addNode(BlockNode n) {
+      H.put(new ByteArrayWrapper(n.b.getHash()), n);
+      levels.get(n.height % levels.size()).add(n);
+      n.bytes = NODE_OVERHEAD + blockBytes(n.b)
+            + (long) UTXO_ENTRY_BYTES * (n.diff.getSpent().size() + n.diff.getCreated().size()
+                  + n.state.getOwnSize());
+      estimatedBytes += n.bytes;
+   }
+
+   private static long blockBytes(Block b) {
+      long bytes = TransactionPool.estimateSize(b.getCoinbase());
+      for (Transaction tx : b.getTransactions())
+         bytes += TransactionPool.estimateSize(tx);
+      return bytes;
    }
 
-   /* Add a transaction in transaction pool
+   /* Size the retention window to the memory budget instead of CUT_OFF_AGE:
+    * after each new block the window shrinks (pruning at once)
+    * while the estimated footprint of the retained nodes exceeds
+    * budgetBytes, but not below minWindow heights, and grows by a height
+    * when a full window has room for one more average height. Footprints
+    * are estimated from each node's block, diff and UTXO state (its own
+    * layer, which merged layers or a flat copy make bigger).
+    */
+   public void setMemoryBudget(long budgetBytes, int minWindow) {
+      if (minWindow < 1)
+         throw new IllegalArgumentException("minWindow must be at least 1");
+      synchronized (lock) {
+         memoryBudget = budgetBytes;
+         minRetention = minWindow;
+         if (retention < minWindow)
+            setRetention(minWindow);
+         adaptRetention();
+      }
+   }
+
+   /* Get the current retention window: blocks at or below
+    * maxHeight - window are pruned and rejected
+    */
+   public int getRetentionWindow() {
+      synchronized (lock) {
+         return retention;
+      }
+   }
+
+   /* Get the estimated heap footprint of the retained block nodes */
+   public long getEstimatedBytes() {
+      synchronized (lock) {
+         return estimatedBytes;
+      }
+   }
+
+   private void adaptRetention() {
+      while (estimatedBytes > memoryBudget && retention > minRetention) {
+         retention--;
+         dropLevelsBelow(height - retention);
+      }
+      int held = height - minHeight + 1;
+      if (held > retention && estimatedBytes + estimatedBytes / held <= memoryBudget)
+         setRetention(retention + 1);
+   }
+
+   // changes the window, re-slotting the ring buffer if it is too small
+   private void setRetention(int window) {
+      retention = window;
+      if (levels.size() > retention)
+         return;
+      ArrayList<ArrayList<BlockNode>> old = levels;
+      levels = new ArrayList<ArrayList<BlockNode>>();
+      for (int i = 0; i <= 2 * retention; i++)
+         levels.add(new ArrayList<BlockNode>());
+      for (ArrayList<BlockNode> level : old)
+         for (BlockNode n : level)
+            levels.get(n.height % levels.size()).add(n);
+   }
+
+   /* Add a transaction in transaction pool if it can be mined on top of the
+    * max height block. Transactions claiming outputs we do not know yet are
+    * parked in the orphan pool and retried when their parent arrives.
     */
    public void addTransaction(Transaction tx) {
-	   	  //System.out.println("Adding Transaction" + tx);
-    	  txPool.addTransaction(tx);
-    	  return;
+      if (tx == null || tx.getHash() == null || tx.isCoinbase())
+         return;
+      // checked and kept as a private copy, which the caller cannot change
+      admit(tx.freeze().toTransaction());
+   }
+
+   // addTransaction for a transaction the chain holds the only reference to
+   private void admit(Transaction tx) {
+      synchronized (lock) {
+         ArrayList<Transaction> queue = new ArrayList<Transaction>();
+         queue.add(tx);
+         while (!queue.isEmpty()) {
+            Transaction next = queue.remove(0);
+            if (admitTransaction(next))
+               queue.addAll(removeOrphansOf(next));
+         }
+         publish();
+      }
+   }
+
+   /* Adds a batch of transactions, e.g. a peer's announced pool, as
+    * addTransaction would one by one. Their signatures are verified first,
+    * in parallel and without the chain lock, against a concurrent view of
+    * the max height UTXO pool holding the outputs of the whole batch, so a
+    * child is verified alongside its parent. Only transactions whose hash
+    * matches their contents are verified ahead, as their outputs are looked
+    * up by that hash. Admission itself then finds the signatures cached.
+    */
+   public void addTransactions(List<Transaction> txs) {
+      final ConcurrentUTXOPool view = new ConcurrentUTXOPool(maxHeightBlock.state);
+      final List<Transaction> copies = txs.parallelStream()
+            .filter(tx -> tx != null && tx.getHash() != null && !tx.isCoinbase())
+            .map(tx -> tx.freeze().toTransaction())
+            .collect(Collectors.toList());
+      final List<Transaction> intact = copies.parallelStream()
+            .filter(tx -> hashMatches(tx))
+            .collect(Collectors.toList());
+      HashMap<UTXO, Transaction.Output> created = new HashMap<UTXO, Transaction.Output>();
+      for (Transaction tx : intact)
+         for (int i = 0; i < tx.numOutputs(); i++)
+            created.put(new UTXO(tx.getHash(), i), tx.getOutput(i));
+      view.addAll(created);
+      intact.parallelStream().forEach(tx -> {
+         for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input in = tx.getInput(i);
+            if (in.prevTxHash == null || in.signature == null)
+               continue;
+            UTXO ut = new UTXO(in.prevTxHash, in.outputIndex);
+            Transaction.Output out = view.getTxOutput(ut);
+            if (out == null)
+               out = txPool.getOutput(ut);
+            if (out != null)
+               SignatureCache.verify(sigCache, out.address, tx.getRawDataToSign(i), in.signature);
+         }
+      });
+      for (Transaction tx : copies)
+         admit(tx);
+   }
+
+   /* Validates tx once against the max height UTXO pool plus the outputs of
+    * pending pool transactions. A transaction claiming outputs that pool
+    * transactions already claim must win the replace-by-fee rules (see
+    * TransactionPool.isReplacementAllowed), which are checked before any
+    * signature so losing conflicts cost no verification work. The
+    * conflicts are only dropped once tx is sure to stay in the pool (see
+    * TransactionPool.replaceTransaction).
+    * Both pools index transactions by hash, so one whose hash does not
+    * match its contents is turned away before either sees it; an orphan
+    * with the same hash is then the same transaction, and is superseded
+    * once tx is admitted.
+    * Returns true if tx entered the pool.
+    */
+   private boolean admitTransaction(Transaction tx) {
+      if (!hashMatches(tx) || txPool.contains(tx.getHash()))
+         return false;
+      UTXOPool uPool = maxHeightBlock.state;
+      ArrayList<UTXO> missing = new ArrayList<UTXO>();
+      boolean conflicts = false;
+      for (Transaction.Input in : tx.getInputs()) {
+         UTXO ut = new UTXO(in.prevTxHash, in.outputIndex);
+         if (!uPool.contains(ut) && !txPool.containsOutput(ut))
+            missing.add(ut);
+         else if (txPool.isSpent(ut))
+            conflicts = true;
+      }
+      if (!missing.isEmpty()) {
+         orphanTxs.addTransaction(tx, missing);
+         return false;
+      }
+      long fee;
+      try {
+         fee = TxHandler.getFeeAmount(tx, uPool, txPool);
+      } catch (ArithmeticException x) {
+         return false;
+      }
+      if (conflicts && !txPool.isReplacementAllowed(tx, fee))
+         return false;
+      if (!TxHandler.isValidTx(tx, uPool, txPool, sigCache))
+         return false;
+      boolean admitted = conflicts ? txPool.replaceTransaction(tx, fee) : txPool.addTransaction(tx, fee);
+      if (admitted)
+         orphanTxs.removeTransaction(tx.getHash());
+      return admitted;
+   }
+
+   /* Write the transaction pool to file, e.g. on shutdown or from a timer
+    * in the node's main loop, so that loadTransactionPool can restore it
+    * after a restart.
+    */
+   public void dumpTransactionPool(File file) throws IOException {
+      txPool.dump(file);
+   }
+
+   /* Re-admit the transactions saved by dumpTransactionPool against the
+    * current max height block. The dump file is not authenticated, so the
+    * transactions go through admission like any others: those whose hash
+    * matches their contents are verified in parallel first (see
+    * addTransactions), and the rest are dropped.
+    * Returns the number of transactions that made it into the pool.
+    */
+   public int loadTransactionPool(File file) throws IOException {
+      int before = txPool.size();
+      addTransactions(TransactionPool.readDump(file).parallelStream()
+            .filter(tx -> hashMatches(tx)).collect(Collectors.toList()));
+      return txPool.size() - before;
+   }
+
+   // true if the stored hash of tx is the hash of its contents
+   static boolean hashMatches(Transaction tx) {
+      if (tx.getHash() == null)
+         return false;
+      try {
+         MessageDigest md = MessageDigest.getInstance("SHA-256");
+         return MessageDigest.isEqual(md.digest(tx.getRawTx()), tx.getHash());
+      } catch (NoSuchAlgorithmException x) {
+         return false;
+      }
+   }
+
+   // true if the stored hash of b is the hash of its contents
+   static boolean hashMatches(Block b) {
+      if (b.getHash() == null)
+         return false;
+      try {
+         MessageDigest md = MessageDigest.getInstance("SHA-256");
+         if (b.getPrevBlockHash() != null)
+            md.update(b.getPrevBlockHash());
+         for (Transaction tx : b.getTransactions())
+            md.update(tx.getRawTx());
+         return MessageDigest.isEqual(md.digest(), b.getHash());
+      } catch (NoSuchAlgorithmException x) {
+         return false;
+      }
+   }
+
+   /* Removes and returns the orphans waiting on any output of tx */
+   private ArrayList<Transaction> removeOrphansOf(Transaction tx) {
+      ArrayList<Transaction> T = new ArrayList<Transaction>();
+      for (int i = 0; i < tx.numOutputs(); i++)
+         T.addAll(orphanTxs.removeWaitingOn(new UTXO(tx.getHash(), i)));
+      return T;
+   }
+
+   // nodes after fork up to and including n, oldest first
+   private static ArrayList<BlockNode> pathFrom(BlockNode fork, BlockNode n) {
+      ArrayList<BlockNode> path = new ArrayList<BlockNode>();
+      for (; n != fork; n = n.parent)
+         path.add(n);
+      Collections.reverse(path);
+      return path;
+   }
+
+   /* Makes newTip, on a branch other than the current tip's, the max height
+    * block. Each node carries its own state, so the UTXO set needs no
+    * work; the blocks from the old tip back to the fork point are walked
+    * only to put their transactions back in the transaction pool, so the
+    * cost is proportional to the depth of the reorg. The branches may
+    * fork below the window, in which case the whole retained part of
+    * both is walked, and the old branch's blocks below it are read back
+    * from the undo log (see undoPrunedBlocks).
+    */
+   private void reorganize(BlockNode newTip) {
+      BlockNode oldTip = maxHeightBlock;
+      BlockNode fork = findForkPoint(oldTip, newTip);
+      ArrayList<Transaction> disconnected = new ArrayList<Transaction>();
+      HashSet<ByteArrayWrapper> dead = new HashSet<ByteArrayWrapper>();
+      BlockNode oldLow = oldTip;
+      for (BlockNode a = oldTip; a != fork; a = a.parent) {
+         disconnected.addAll(0, a.b.getTransactions());
+         dead.add(new ByteArrayWrapper(a.b.getCoinbase().getHash()));
+         oldLow = a;
+      }
+      if (fork == null)
+         undoPrunedBlocks(oldLow, newTip, disconnected, dead);
+      // the undo log follows the main chain; below the window the old
+      // chain's records no longer match the new one
+      if (undoLog != null && fork != null)
+         undoLog.truncate(fork.height);
+      else if (undoLog != null)
+         undoLog.clear();
+      ArrayList<BlockNode> path = pathFrom(fork, newTip);
+      HashSet<ByteArrayWrapper> connected = new HashSet<ByteArrayWrapper>();
+      for (BlockNode a : path)
+         for (Transaction tx : a.b.getTransactions())
+            connected.add(new ByteArrayWrapper(tx.getHash()));
+      height = newTip.height;
+      maxHeightBlock = newTip;
+      for (BlockNode a : path)
+         logConnect(a);
+      resurrectTransactions(disconnected, dead, connected);
+   }
+
+   /* For a reorg onto newTip forking below the window: puts the
+    * transactions of the old branch's blocks under oldLow, its lowest
+    * retained node, in front of disconnected and their coinbases in dead,
+    * reading them from the undo log down to the fork point: the new
+    * branch's lowest retained block remembers the last main chain block
+    * among its pruned ancestors. Without an undo log, or when that block
+    * is no longer logged (the log was cleared by an earlier reorg like
+    * this one, or does not reach that deep), the fork height is unknown
+    * and those transactions are not put back in the pool.
+    */
+   private void undoPrunedBlocks(BlockNode oldLow, BlockNode newTip, ArrayList<Transaction> disconnected,
+         HashSet<ByteArrayWrapper> dead) {
+      if (undoLog == null)
+         return;
+      BlockNode newLow = newTip;
+      while (newLow.parent != null)
+         newLow = newLow.parent;
+      int forkHeight = newLow.prunedBase == null ? -1 : undoLog.heightOf(newLow.prunedBase);
+      if (forkHeight < 0)
+         return;
+      for (int h = oldLow.height - 1; h > forkHeight; h--) {
+         ByteArrayWrapper hash = undoLog.hashAt(h);
+         if (hash == null)
+            return;
+         try {
+            UndoLog.Record r = undoLog.read(h, hash);
+            disconnected.addAll(0, r.txs);
+            dead.add(new ByteArrayWrapper(r.coinbaseHash));
+         } catch (IOException x) {
+            x.printStackTrace(System.err);
+            return;
+         }
+      }
+   }
+
+   /* The parent of c's block b is not in the window. If b sits on a fork
+    * whose base is a main chain block with an undo record (directly, or
+    * through pending fork blocks), keep it; once its branch is higher than
+    * the max height block, plan the reorg onto it in c.fork. Called under
+    * the lock; the fork is validated after it is released.
+    */
+   private Reason checkDeepFork(Candidate c) {
+      Block b = c.b;
+      int len = 1;
+      byte[] prev = b.getPrevBlockHash();
+      int forkHeight = undoLog.heightOf(prev);
+      while (forkHeight < 0) {
+         Block p = deepBlocks.get(new ByteArrayWrapper(prev));
+         if (p == null)
+            return Reason.UNKNOWN_PARENT;
+         len++;
+         prev = p.getPrevBlockHash();
+         forkHeight = undoLog.heightOf(prev);
+      }
+      if (forkHeight + 1 <= height - undoLog.getMaxDepth())
+         return Reason.TOO_OLD;
+      deepBlocks.put(new ByteArrayWrapper(b.getHash()), b);
+      if (forkHeight + len <= height) {
+         c.done = true;
+         return Reason.DEEP_FORK_PENDING;
+      }
+      ArrayList<Block> path = new ArrayList<Block>();
+      for (Block a = b; a != null; a = deepBlocks.get(new ByteArrayWrapper(a.getPrevBlockHash())))
+         path.add(0, a);
+      c.fork = new DeepFork(maxHeightBlock, undoLog, forkHeight, path);
+      return null;
+   }
+
+   /* Validates the deep fork f without the lock. The undo records from
+    * f's tip down to the fork point are streamed from disk onto a layer over
+    * the tip's state, and the fork's blocks are validated on top of it,
+    * oldest first, each getting its own state. Neither the tip's state nor
+    * the records read (checked against the hashes planned) change
+    * underneath, so the outcome holds unless the tip moved.
+    */
+   private void validateDeepFork(DeepFork f) {
+      ArrayList<UndoLog.Record> undone = new ArrayList<UndoLog.Record>();
+      UTXOPool uPool = UTXOPool.layer(f.tipState);
+      try {
+         for (int i = 0; i < f.undoHashes.size(); i++) {
+            if (f.undoHashes.get(i) == null)
+               throw new IOException("no undo record at height " + (f.tip.height - i));
+            UndoLog.Record r = f.log.read(f.tip.height - i, f.undoHashes.get(i));
+            r.diff.disconnect(uPool);
+            undone.add(r);
+         }
+      } catch (IOException x) {
+         f.error = x;
+         return;
+      }
+      ArrayList<BlockDiff> diffs = new ArrayList<BlockDiff>();
+      ArrayList<UTXOPool> states = new ArrayList<UTXOPool>();
+      for (int i = 0; i < f.path.size(); i++) {
+         Block p = f.path.get(i);
+         TxHandler handler = new TxHandler(UTXOPool.layer(uPool), sigCache);
+         if (!handler.connectTxs(p.getTransactions())) {
+            f.invalidFrom = i;
+            return;
+         }
+         BlockDiff d = BlockDiff.of(p, uPool);
+         uPool = stateOf(uPool, d);
+         diffs.add(d);
+         states.add(uPool);
+      }
+      f.undone = undone;
+      f.diffs = diffs;
+      f.states = states;
+   }
+
+   /* Switches the main chain to the validated deep fork f, under the lock
+    * and with the chain as f was planned against. Only if all its blocks
+    * are valid is the window rebuilt from the new branch (other branches
+    * are dropped) and the tip moved over.
+    */
+   private Reason deepReorganize(DeepFork f) {
+      if (f.invalidFrom >= 0) {
+         // the block and everything built on it here is invalid
+         for (Block q : f.path.subList(f.invalidFrom, f.path.size())) {
+            if (deepBlocks != null)
+               deepBlocks.remove(new ByteArrayWrapper(q.getHash()));
+            knownInvalid.put(new ByteArrayWrapper(q.getHash()), Reason.INVALID_TXS);
+         }
+         return Reason.INVALID_TXS;
+      }
+      if (f.error != null) {
+         f.error.printStackTrace(System.err);
+         disableDeepReorgs();
+         return Reason.FORK_TOO_DEEP;
+      }
+      int forkHeight = f.forkHeight;
+      ArrayList<Block> path = f.path;
+      ArrayList<UndoLog.Record> undone = f.undone;
+      ArrayList<BlockDiff> diffs = f.diffs;
+      ArrayList<UTXOPool> states = f.states;
+
+      /* all valid: move the mempool over */
+      ArrayList<Transaction> disconnected = new ArrayList<Transaction>();
+      HashSet<ByteArrayWrapper> dead = new HashSet<ByteArrayWrapper>();
+      for (UndoLog.Record r : undone) {
+         disconnected.addAll(0, r.txs);
+         dead.add(new ByteArrayWrapper(r.coinbaseHash));
+      }
+      HashSet<ByteArrayWrapper> connected = new HashSet<ByteArrayWrapper>();
+      for (int i = 0; i < path.size(); i++) {
+         for (Transaction tx : path.get(i).getTransactions())
+            connected.add(new ByteArrayWrapper(tx.getHash()));
+      }
+
+      /* rebuild the window from the top of the new branch */
+      H.clear();
+      for (ArrayList<BlockNode> level : levels)
+         level.clear();
+      estimatedBytes = 0;
+      height = forkHeight + path.size();
+      minHeight = Math.max(forkHeight + 1, height - retention);
+      undoLog.truncate(forkHeight);
+      BlockNode parent = null;
+      for (int i = 0; i < path.size(); i++) {
+         Block p = path.get(i);
+         int h = forkHeight + 1 + i;
+         deepBlocks.remove(new ByteArrayWrapper(p.getHash()));
+         knownValid.put(new ByteArrayWrapper(p.getHash()), Boolean.TRUE);
+         logConnect(h, p, diffs.get(i));
+         // below the window, only the undo record is kept
+         if (h < minHeight)
+            continue;
+         BlockNode n = new BlockNode(p, parent, diffs.get(i), states.get(i), h);
+         addNode(n);
+         parent = n;
+      }
+      maxHeightBlock = parent;
+      resurrectTransactions(disconnected, dead, connected);
+      return null;
+   }
+
+   /* Keep the transaction pool minable on top of the new max height block
+    * when it extends the old one: drop the transactions it confirmed and
+    * anything conflicting with them, then promote orphans whose parents
+    * were confirmed, and let the minimum fee rate decay.
+    */
+   private void updateTransactionPool(Block newTip) {
+      ArrayList<Transaction> retry = new ArrayList<Transaction>();
+      for (Transaction tx : newTip.getTransactions()) {
+         txPool.removeTransaction(tx.getHash());
+         orphanTxs.removeTransaction(tx.getHash());
+         for (Transaction.Input in : tx.getInputs()) {
+            Transaction conflict = txPool.getSpender(new UTXO(in.prevTxHash, in.outputIndex));
+            if (conflict != null)
+               txPool.removeTransactionAndDescendants(conflict.getHash());
+         }
+         retry.addAll(removeOrphansOf(tx));
+      }
+      retry.addAll(removeOrphansOf(newTip.getCoinbase()));
+      txPool.decayMinFeeRate();
+      for (Transaction tx : retry)
+         admit(tx);
+   }
+
+   /* After a reorg, re-admit in one batch the transactions of the
+    * disconnected blocks (oldest first), then the pool and orphan
+    * transactions, so parents come before children in the pool. Those
+    * confirmed on the new branch are skipped. A disconnected transaction
+    * spending an output that is gone (a disconnected coinbase, an output
+    * spent on the new branch or one of a skipped transaction) is dropped
+    * rather than parked as an orphan. Transactions from connected blocks
+    * had their signatures checked, so those usually still are in the
+    * signature cache and only inputs and values are checked again.
+    */
+   private void resurrectTransactions(ArrayList<Transaction> disconnected, HashSet<ByteArrayWrapper> dead,
+         HashSet<ByteArrayWrapper> connected) {
+      ArrayList<Transaction> retry = new ArrayList<Transaction>(txPool.getTransactions());
+      retry.addAll(orphanTxs.getTransactions());
+      txPool.clear();
+      orphanTxs = new OrphanTxPool();
+      for (Transaction tx : disconnected) {
+         if (connected.contains(new ByteArrayWrapper(tx.getHash())))
+            continue;
+         boolean spendsDead = false;
+         for (Transaction.Input in : tx.getInputs()) {
+            UTXO ut = new UTXO(in.prevTxHash, in.outputIndex);
+            spendsDead = spendsDead || dead.contains(new ByteArrayWrapper(in.prevTxHash))
+                  || (!maxHeightBlock.state.contains(ut) && !txPool.containsOutput(ut));
+         }
+         if (spendsDead) {
+            dead.add(new ByteArrayWrapper(tx.getHash()));
+         } else {
+            admit(tx);
+         }
+      }
+      for (Transaction tx : retry)
+         if (!connected.contains(new ByteArrayWrapper(tx.getHash())))
+            admit(tx);
    }
-}
\ No newline at end of file
+}
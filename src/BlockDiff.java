@@ -0,0 +1,74 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* The net effect of a connected block on the UTXO set: the outputs it
+ * spent that existed before it (with their values, so they can be put
+ * back) and the outputs it created that are still unspent after it,
+ * coinbase included. Outputs both created and spent inside the block
+ * appear in neither. An output that overwrites an identical unspent one
+ * (same transaction hash, e.g. two coinbases paying the same address) also
+ * counts the old one as spent, so disconnecting restores it. Connecting or
+ * disconnecting a block with its diff costs O(block size), whatever the
+ * size of the UTXO set.
+ */
+public class BlockDiff {
+   private LinkedHashMap<UTXO, Transaction.Output> spent;
+   private LinkedHashMap<UTXO, Transaction.Output> created;
+
+   public BlockDiff() {
+      spent = new LinkedHashMap<UTXO, Transaction.Output>();
+      created = new LinkedHashMap<UTXO, Transaction.Output>();
+   }
+
+   // Computes the diff of <b> on top of <before>, the UTXO pool of its
+   // parent; the transactions of <b> are assumed valid in block order
+   public static BlockDiff of(Block b, UTXOPool before) {
+      BlockDiff d = new BlockDiff();
+      for (Transaction tx : b.getTransactions())
+         d.addTransaction(tx, before);
+      Transaction cb = b.getCoinbase();
+      for (int i = 0; i < cb.numOutputs(); i++)
+         d.create(new UTXO(cb.getHash(), i), cb.getOutput(i), before);
+      return d;
+   }
+
+   private void addTransaction(Transaction tx, UTXOPool before) {
+      for (Transaction.Input in : tx.getInputs()) {
+         UTXO ut = new UTXO(in.prevTxHash, in.outputIndex);
+         if (created.remove(ut) == null)
+            spent.put(ut, before.getTxOutput(ut));
+      }
+      for (int i = 0; i < tx.numOutputs(); i++)
+         create(new UTXO(tx.getHash(), i), tx.getOutput(i), before);
+   }
+
+   private void create(UTXO ut, Transaction.Output txOut, UTXOPool before) {
+      if (!created.containsKey(ut) && !spent.containsKey(ut) && before.contains(ut))
+         spent.put(ut, before.getTxOutput(ut));
+      created.put(ut, txOut);
+   }
+
+   // Moves <uPool> from the parent's state to the block's
+   public void connect(UTXOPool uPool) {
+      for (UTXO ut : spent.keySet())
+         uPool.removeUTXO(ut);
+      for (Map.Entry<UTXO, Transaction.Output> e : created.entrySet())
+         uPool.addUTXO(e.getKey(), e.getValue());
+   }
+
+   // Moves <uPool> from the block's state back to the parent's
+   public void disconnect(UTXOPool uPool) {
+      for (UTXO ut : created.keySet())
+         uPool.removeUTXO(ut);
+      for (Map.Entry<UTXO, Transaction.Output> e : spent.entrySet())
+         uPool.addUTXO(e.getKey(), e.getValue());
+   }
+
+   public Map<UTXO, Transaction.Output> getSpent() {
+      return spent;
+   }
+
+   public Map<UTXO, Transaction.Output> getCreated() {
+      return created;
+   }
+}
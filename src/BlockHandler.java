@@ -1,5 +1,43 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 public class BlockHandler {
+   // blocks in the stages of processBlockAsync at once; later ones wait
+   // in line until an earlier one is connected
+   public static final int MAX_IN_FLIGHT = 64;
+
+   // a block on its way through the ingest pipeline
+   private static class Ingest {
+      public final Block block;
+      // its transactions whose hash matches their contents
+      public final ArrayList<Transaction> hashed = new ArrayList<Transaction>();
+      // per hashed transaction, the output each input claims, if found
+      public Transaction.Output[][] claimed;
+
+      public Ingest(Block block) {
+         this.block = block;
+      }
+   }
+
    private BlockChain blockChain;
+   // ingest pipeline, started by the first processBlockAsync: the early
+   // stages run on the workers, connecting on a single thread in
+   // submission order
+   private ExecutorService workers;
+   private ExecutorService connector;
+   private CompletableFuture<Boolean> lastConnect;
+   // blocks past stage 0, and those waiting for one of them to connect
+   private int inFlight;
+   private ArrayDeque<CompletableFuture<Void>> waiting;
+   private boolean closed;
+   // outputs of the transactions of blocks in the pipeline
+   private ConcurrentHashMap<UTXO, Transaction.Output> pendingOutputs;
 
    // assume blockChain has the genesis block
    public BlockHandler(BlockChain bChain) {
@@ -7,25 +45,212 @@ public class BlockHandler {
    }
 
    // add the block to the blockchain if it is valid and return true
-   // else return false
+   // else return false; may be called from several threads at once
    public boolean processBlock(Block block) {
       if (block == null)
          return false;
       return blockChain.addBlock(block);
    }
 
+   /* Same as processBlock, but returns at once; the future completes with
+    * the result. Blocks go through a pipeline:
+    *   1. hash:     recompute the hash of each transaction
+    *   2. prefetch: find the output each input claims, in the max height
+    *                UTXO pool or among the outputs of blocks ahead of this
+    *                one in the pipeline
+    *   3. verify:   check the signatures of those inputs, recording the
+    *                good ones in the chain's signature cache
+    *   4. connect:  processBlock, one block at a time in submission order
+    * Stages 1-3 of later blocks overlap the connect stage of earlier ones,
+    * so a steady stream of blocks is ingested at the pace of the slowest
+    * stage. They only warm the signature cache, connecting still does the
+    * full validation. At most MAX_IN_FLIGHT blocks are in stages 1-4 at a
+    * time; the others wait in line (stage 0) until an earlier one is
+    * connected. The call itself never waits, so it is safe from any
+    * thread, including a callback of an earlier block's future; callers
+    * wanting back pressure wait on the futures. Throws
+    * IllegalStateException once the handler is closed.
+    */
+   public CompletableFuture<Boolean> processBlockAsync(final Block block) {
+      if (block == null)
+         return CompletableFuture.completedFuture(false);
+      startPipeline();
+      synchronized (this) {
+         CompletableFuture<Block> verified = admit()
+               .thenApplyAsync(v -> hash(new Ingest(block)), workers)
+               .thenApplyAsync(this::prefetch, workers)
+               .thenApplyAsync(this::verify, workers)
+               .handle((in, x) -> block);
+         CompletableFuture<Boolean> connected = verified.thenCombineAsync(lastConnect,
+               (b, previous) -> connect(b), connector);
+         lastConnect = connected.exceptionally(x -> false);
+         return connected;
+      }
+   }
+
+   /* Stops the ingest pipeline: waits until every block handed to
+    * processBlockAsync is connected, then shuts its threads down. Call it
+    * once no processBlocks call is running, and not from a callback on a
+    * pipeline thread. processBlock and the other calls keep working.
+    */
+   public void close() {
+      CompletableFuture<Boolean> last;
+      synchronized (this) {
+         if (closed)
+            return;
+         closed = true;
+         if (workers == null)
+            return;
+         last = lastConnect;
+      }
+      last.join();
+      workers.shutdown();
+      connector.shutdown();
+   }
+
+   /* Adds a batch of blocks, e.g. thousands of consecutive blocks during
+    * catch-up sync, and returns how many were connected. The blocks go
+    * through stages 1-3 of processBlockAsync on the workers, all hashed
+    * first so later blocks can claim the outputs of earlier ones, while
+    * BlockChain.addBlocks applies them in order over a single working UTXO
+    * view: block N is applied while the signatures of N+1.. are checked.
+    */
+   public int processBlocks(List<Block> blocks) {
+      startPipeline();
+      ArrayList<CompletableFuture<Ingest>> hashed = new ArrayList<CompletableFuture<Ingest>>();
+      for (final Block b : blocks)
+         hashed.add(b == null ? null : CompletableFuture.supplyAsync(() -> hash(new Ingest(b)), workers));
+      for (CompletableFuture<Ingest> h : hashed)
+         if (h != null)
+            h.exceptionally(x -> null).join();
+      ArrayList<CompletableFuture<Ingest>> verified = new ArrayList<CompletableFuture<Ingest>>();
+      for (CompletableFuture<Ingest> h : hashed)
+         verified.add(h == null ? null : h.thenApplyAsync(this::prefetch, workers)
+               .thenApplyAsync(this::verify, workers));
+      try {
+         return blockChain.addBlocks(blocks, verified);
+      } finally {
+         for (Block b : blocks)
+            if (b != null)
+               forgetOutputs(b);
+      }
+   }
+
+   private synchronized void startPipeline() {
+      if (closed)
+         throw new IllegalStateException("block handler is closed");
+      if (workers != null)
+         return;
+      ThreadFactory daemons = r -> {
+         Thread t = new Thread(r, "block-ingest");
+         t.setDaemon(true);
+         return t;
+      };
+      workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), daemons);
+      connector = Executors.newSingleThreadExecutor(daemons);
+      lastConnect = CompletableFuture.completedFuture(true);
+      waiting = new ArrayDeque<CompletableFuture<Void>>();
+      pendingOutputs = new ConcurrentHashMap<UTXO, Transaction.Output>();
+   }
+
+   // stage 0: completes once the block may enter stage 1, at once while
+   // fewer than MAX_IN_FLIGHT blocks are in; called in submission order
+   private synchronized CompletableFuture<Void> admit() {
+      if (inFlight < MAX_IN_FLIGHT) {
+         inFlight++;
+         return CompletableFuture.completedFuture(null);
+      }
+      CompletableFuture<Void> turn = new CompletableFuture<Void>();
+      waiting.add(turn);
+      return turn;
+   }
+
+   // hands the place of a connected block to the next one in line
+   private void release() {
+      CompletableFuture<Void> next;
+      synchronized (this) {
+         next = waiting.poll();
+         if (next == null) {
+            inFlight--;
+            return;
+         }
+      }
+      next.complete(null);
+   }
+
+   // stage 1: only transactions whose hash checks out are looked at
+   // further, as their outputs are looked up by that hash
+   private Ingest hash(Ingest in) {
+      for (Transaction tx : in.block.getTransactions())
+         if (tx != null && BlockChain.hashMatches(tx))
+            in.hashed.add(tx);
+      for (Transaction tx : in.hashed)
+         for (int i = 0; i < tx.numOutputs(); i++)
+            pendingOutputs.put(new UTXO(tx.getHash(), i), tx.getOutput(i));
+      return in;
+   }
+
+   // stage 2
+   private Ingest prefetch(Ingest in) {
+      UTXOPool tipPool = blockChain.getMaxHeightUTXOPool();
+      in.claimed = new Transaction.Output[in.hashed.size()][];
+      for (int t = 0; t < in.hashed.size(); t++) {
+         Transaction tx = in.hashed.get(t);
+         in.claimed[t] = new Transaction.Output[tx.numInputs()];
+         for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input input = tx.getInput(i);
+            UTXO ut = new UTXO(input.prevTxHash, input.outputIndex);
+            Transaction.Output out = pendingOutputs.get(ut);
+            in.claimed[t][i] = out != null ? out : tipPool.getTxOutput(ut);
+         }
+      }
+      return in;
+   }
+
+   // stage 3: an input whose signature fails or whose output was not
+   // found is left for the connect stage to judge
+   private Ingest verify(Ingest in) {
+      SignatureCache sigCache = blockChain.getSignatureCache();
+      for (int t = 0; t < in.hashed.size(); t++) {
+         Transaction tx = in.hashed.get(t);
+         for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Output out = in.claimed[t][i];
+            byte[] sig = tx.getInput(i).signature;
+            if (out == null || sig == null)
+               continue;
+            SignatureCache.verify(sigCache, out.address, tx.getRawDataToSign(i), sig);
+         }
+      }
+      return in;
+   }
+
+   // stage 4
+   private boolean connect(Block block) {
+      try {
+         return processBlock(block);
+      } finally {
+         forgetOutputs(block);
+         release();
+      }
+   }
+
+   private void forgetOutputs(Block block) {
+      for (Transaction tx : block.getTransactions())
+         if (tx != null && tx.getHash() != null)
+            for (int i = 0; i < tx.numOutputs(); i++)
+               pendingOutputs.remove(new UTXO(tx.getHash(), i));
+   }
+
    // create a new block over the max height block
    public Block createBlock(RSAKey myAddress) {
       Block parent = blockChain.getMaxHeightBlock();
       byte[] parentHash = parent.getHash();
       Block current = new Block(parentHash, myAddress);
-      UTXOPool uPool = blockChain.getMaxHeightUTXOPool();
+      // the pool only holds transactions validated against the max height
+      // UTXO pool, in an order where parents come before children
       TransactionPool txPool = blockChain.getTransactionPool();
-      TxHandler handler = new TxHandler(uPool);
-      Transaction[] txs = txPool.getTransactions().toArray(new Transaction[0]);
-      Transaction[] rTxs = handler.handleTxs(txs);
-      for (int i = 0; i < rTxs.length; i++)
-         current.addTransaction(rTxs[i]);
+      for (Transaction tx : txPool.getTransactions())
+         current.addTransaction(tx);
 
       current.finalize();
       if (blockChain.addBlock(current))
@@ -38,4 +263,9 @@ public class BlockHandler {
    public void processTx(Transaction tx) {
       blockChain.addTransaction(tx);
    }
+
+   // process a batch of transactions, verifying their signatures in parallel
+   public void processTxs(List<Transaction> txs) {
+      blockChain.addTransactions(txs);
+   }
 }
@@ -12,6 +12,11 @@ public class ByteArrayWrapper {
          contents[i] = b[i];
    }
 
+   // Returns the wrapped bytes; callers must not modify them
+   public byte[] getBytes() {
+      return contents;
+   }
+
    public boolean equals(Object other) {
       if (other == null) {
          return false;
@@ -0,0 +1,67 @@
+import java.util.ArrayList;
+
+/* A consistent, immutable picture of a BlockChain at one moment: the max
+ * height block, the UTXO pool on top of it and the transaction pool, as
+ * they were together (see BlockChain.getSnapshot). A reader holding a
+ * snapshot sees exactly that version however the chain moves on, and
+ * neither waits for nor delays the thread connecting blocks. Nothing is
+ * copied to take one; what only old snapshots still refer to is reclaimed
+ * by the garbage collector once they are dropped.
+ */
+public class ChainSnapshot {
+   private final long version;
+   private final Block tip;
+   private final int height;
+   // never modified once published
+   private final UTXOPool state;
+   private final TransactionPool.View txs;
+
+   public ChainSnapshot(long version, Block tip, int height, UTXOPool state, TransactionPool.View txs) {
+      this.version = version;
+      this.tip = tip;
+      this.height = height;
+      this.state = state;
+      this.txs = txs;
+   }
+
+   // Increases with every change published by the chain
+   public long getVersion() {
+      return version;
+   }
+
+   public Block getMaxHeightBlock() {
+      return tip;
+   }
+
+   public int getHeight() {
+      return height;
+   }
+
+   /* Get the UTXOPool on top of the max height block (a layer over the
+    * snapshot's state, so the caller may modify it)
+    */
+   public UTXOPool getUTXOPool() {
+      return UTXOPool.layer(state);
+   }
+
+   public Transaction.Output getTxOutput(UTXO ut) {
+      return state.getTxOutput(ut);
+   }
+
+   public boolean containsUTXO(UTXO ut) {
+      return state.contains(ut);
+   }
+
+   // in base units, see Amount
+   public long getBalance(RSAKey address) {
+      return state.getBalance(address);
+   }
+
+   public ArrayList<UTXO> getUTXOsOf(RSAKey address) {
+      return state.getUTXOsOf(address);
+   }
+
+   public TransactionPool.View getTransactionPool() {
+      return txs;
+   }
+}
@@ -0,0 +1,188 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.stream.IntStream;
+
+/* A UTXO pool that several threads can read and write at once. It is a
+ * layer over a base pool, which must not change while this pool is in
+ * use. Its own changes are spread over lock stripes by outpoint hash, so
+ * threads touching different outputs rarely contend. spendIfPresent
+ * detects double spends between threads without any further locking.
+ * Being a short-lived working view, possibly of outputs not validated
+ * yet, it holds outputs as given rather than interning their addresses
+ * (see UTXOPool.addUTXO).
+ */
+public class ConcurrentUTXOPool extends UTXOPool {
+   public static final int STRIPES = 64;
+
+   // the changes to the outputs hashing to one stripe
+   private static class Stripe {
+      public final HashMap<UTXO, Transaction.Output> added = new HashMap<UTXO, Transaction.Output>();
+      public final HashSet<UTXO> removed = new HashSet<UTXO>();
+   }
+
+   private final UTXOPool base;
+   private final Stripe[] stripes;
+
+   // Creates an empty pool
+   public ConcurrentUTXOPool() {
+      this(new UTXOPool());
+   }
+
+   // Creates a pool that starts out with the contents of <base>
+   public ConcurrentUTXOPool(UTXOPool base) {
+      this.base = base;
+      stripes = new Stripe[STRIPES];
+      for (int i = 0; i < STRIPES; i++)
+         stripes[i] = new Stripe();
+   }
+
+   private Stripe stripeOf(UTXO ut) {
+      return stripes[indexOf(ut)];
+   }
+
+   private static int indexOf(UTXO ut) {
+      return (ut.hashCode() & 0x7fffffff) % STRIPES;
+   }
+
+   public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+      Stripe s = stripeOf(utxo);
+      synchronized (s) {
+         s.added.put(utxo, txOut);
+         s.removed.remove(utxo);
+      }
+   }
+
+   /* Adds every entry of <outputs>. The entries are sorted by stripe first
+    * and the stripes filled in parallel, each under a single lock.
+    */
+   public void addAll(Map<UTXO, Transaction.Output> outputs) {
+      final ArrayList<List<Map.Entry<UTXO, Transaction.Output>>> byStripe =
+            new ArrayList<List<Map.Entry<UTXO, Transaction.Output>>>();
+      for (int i = 0; i < STRIPES; i++)
+         byStripe.add(new ArrayList<Map.Entry<UTXO, Transaction.Output>>());
+      for (Map.Entry<UTXO, Transaction.Output> e : outputs.entrySet())
+         byStripe.get(indexOf(e.getKey())).add(e);
+      IntStream.range(0, STRIPES).parallel().forEach(i -> {
+         Stripe s = stripes[i];
+         synchronized (s) {
+            for (Map.Entry<UTXO, Transaction.Output> e : byStripe.get(i)) {
+               s.added.put(e.getKey(), e.getValue());
+               s.removed.remove(e.getKey());
+            }
+         }
+      });
+   }
+
+   /* Removes <utxo> and returns its output if it is in the pool, otherwise
+    * returns null, as one atomic step: of several threads spending the
+    * same output, exactly one gets it.
+    */
+   public Transaction.Output spendIfPresent(UTXO utxo) {
+      Stripe s = stripeOf(utxo);
+      synchronized (s) {
+         Transaction.Output txOut = s.added.remove(utxo);
+         if (txOut == null && !s.removed.contains(utxo))
+            txOut = base.getTxOutput(utxo);
+         if (txOut != null && base.contains(utxo))
+            s.removed.add(utxo);
+         return txOut;
+      }
+   }
+
+   public void removeUTXO(UTXO utxo) {
+      Stripe s = stripeOf(utxo);
+      synchronized (s) {
+         s.added.remove(utxo);
+         if (base.contains(utxo))
+            s.removed.add(utxo);
+      }
+   }
+
+   public Transaction.Output getTxOutput(UTXO ut) {
+      Stripe s = stripeOf(ut);
+      synchronized (s) {
+         Transaction.Output txOut = s.added.get(ut);
+         if (txOut != null || s.removed.contains(ut))
+            return txOut;
+      }
+      return base.getTxOutput(ut);
+   }
+
+   public boolean contains(UTXO utxo) {
+      Stripe s = stripeOf(utxo);
+      synchronized (s) {
+         if (s.added.containsKey(utxo))
+            return true;
+         if (s.removed.contains(utxo))
+            return false;
+      }
+      return base.contains(utxo);
+   }
+
+   // Not atomic with respect to concurrent writers
+   public int size() {
+      int n = base.size();
+      for (Stripe s : stripes) {
+         synchronized (s) {
+            n -= s.removed.size();
+            for (UTXO ut : s.added.keySet())
+               if (!base.contains(ut))
+                  n++;
+         }
+      }
+      return n;
+   }
+
+   public int getDepth() {
+      return base.getDepth() + 1;
+   }
+
+   public int getOwnSize() {
+      int n = 0;
+      for (Stripe s : stripes) {
+         synchronized (s) {
+            n += s.added.size() + s.removed.size();
+         }
+      }
+      return n;
+   }
+
+   // Not atomic with respect to concurrent writers
+   public ArrayList<UTXO> getAllUTXO() {
+      ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
+      for (UTXO ut : base.getAllUTXO())
+         if (!stripeHas(ut))
+            allUTXO.add(ut);
+      for (Stripe s : stripes) {
+         synchronized (s) {
+            allUTXO.addAll(s.added.keySet());
+         }
+      }
+      return allUTXO;
+   }
+
+   // Iterates over a copy of the entries; not atomic with respect to
+   // concurrent writers
+   public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+      ArrayList<Map.Entry<UTXO, Transaction.Output>> entries = new ArrayList<Map.Entry<UTXO, Transaction.Output>>();
+      for (UTXO ut : getAllUTXO()) {
+         Transaction.Output txOut = getTxOutput(ut);
+         if (txOut != null)
+            entries.add(new AbstractMap.SimpleImmutableEntry<UTXO, Transaction.Output>(ut, txOut));
+      }
+      return entries.spliterator();
+   }
+
+   // true if this pool's own changes cover <ut>
+   private boolean stripeHas(UTXO ut) {
+      Stripe s = stripeOf(ut);
+      synchronized (s) {
+         return s.added.containsKey(ut) || s.removed.contains(ut);
+      }
+   }
+}
@@ -0,0 +1,239 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* An immutable, compact form of a transaction (see Transaction.freeze).
+ * Instead of an object per input and output, the whole transaction is
+ * a few flat arrays: one byte block holding the hash, the previous
+ * transaction hashes and the signatures back to back, one int[] with the
+ * offsets into it and the output indexes, the amounts in a long[] and the
+ * output keys, shared with the address table where a pool already holds
+ * them (see Address.find). Nothing in it can change, so it
+ * is shared between pools, views and threads as is; the accessors hand
+ * out copies. It also avoids the finalizer every Transaction object
+ * registers.
+ */
+public final class FrozenTransaction {
+   private final boolean coinbase;
+   // hash, previous transaction hashes and signatures, back to back
+   private final byte[] bytes;
+   // the end offset in bytes of the hash, then per input the ends of its
+   // previous hash, its output index and the end of its signature. A null
+   // field is stored as ~end and takes no bytes.
+   private final int[] ints;
+   // amounts in base units (see Amount), or null if one of the values is
+   // not a whole number of base units
+   private final long[] amounts;
+   // the values as given, only if amounts is null
+   private final double[] values;
+   // the address of each output
+   private final RSAKey[] keys;
+
+   // Creates the frozen form of <tx> as it is now
+   public FrozenTransaction(Transaction tx) {
+      coinbase = tx.isCoinbase();
+      int n = tx.numInputs();
+      int m = tx.numOutputs();
+      byte[][] fields = new byte[1 + 2 * n][];
+      fields[0] = tx.getHash();
+      for (int i = 0; i < n; i++) {
+         fields[1 + i] = tx.getInput(i).prevTxHash;
+         fields[1 + n + i] = tx.getInput(i).signature;
+      }
+      int len = 0;
+      for (byte[] f : fields)
+         if (f != null)
+            len += f.length;
+      bytes = new byte[len];
+      int[] ends = new int[fields.length];
+      int end = 0;
+      for (int i = 0; i < fields.length; i++) {
+         if (fields[i] == null) {
+            ends[i] = ~end;
+         } else {
+            System.arraycopy(fields[i], 0, bytes, end, fields[i].length);
+            end += fields[i].length;
+            ends[i] = end;
+         }
+      }
+
+      ints = new int[1 + 3 * n];
+      ints[0] = ends[0];
+      for (int i = 0; i < n; i++) {
+         ints[1 + 3 * i] = ends[1 + i];
+         ints[2 + 3 * i] = tx.getInput(i).outputIndex;
+         ints[3 + 3 * i] = ends[1 + n + i];
+      }
+      long[] units = new long[m];
+      double[] given = new double[m];
+      boolean exact = true;
+      keys = new RSAKey[m];
+      for (int i = 0; i < m; i++) {
+         Transaction.Output op = tx.getOutput(i);
+         given[i] = op.value;
+         try {
+            units[i] = op.getAmount();
+         } catch (ArithmeticException x) {
+            exact = false;
+         }
+         Address a = op.address == null ? null : Address.find(op.address);
+         keys[i] = a != null ? a : op.address;
+      }
+      amounts = exact ? units : null;
+      values = exact ? null : given;
+   }
+
+   // slot in ints of the end of field <f>: 0 the hash, 1 + 2i and 2 + 2i
+   // the previous hash and signature of input i
+   private static int slotOf(int f) {
+      return f == 0 ? 0 : (f - 1) / 2 * 3 + ((f - 1) % 2 == 0 ? 1 : 3);
+   }
+
+   private static int endOf(int end) {
+      return end < 0 ? ~end : end;
+   }
+
+   private int startOf(int f) {
+      if (f == 0)
+         return 0;
+      // a previous hash follows the one before it, the first one the
+      // transaction hash; a signature likewise, the first one the last
+      // previous hash
+      int n = numInputs();
+      int i = (f - 1) / 2;
+      boolean signature = (f - 1) % 2 == 1;
+      if (!signature)
+         return endOf(ints[i == 0 ? 0 : slotOf(2 * i - 1)]);
+      return endOf(ints[i == 0 ? slotOf(2 * n - 1) : slotOf(2 * i)]);
+   }
+
+   // field <f> as a new array, or null
+   private byte[] field(int f) {
+      int end = ints[slotOf(f)];
+      if (end < 0)
+         return null;
+      return Arrays.copyOfRange(bytes, startOf(f), end);
+   }
+
+   private int fieldLength(int f) {
+      return endOf(ints[slotOf(f)]) - startOf(f);
+   }
+
+   private void putField(ByteBuffer b, int f) {
+      int start = startOf(f);
+      b.put(bytes, start, endOf(ints[slotOf(f)]) - start);
+   }
+
+   public byte[] getHash() {
+      return field(0);
+   }
+
+   public boolean isCoinbase() {
+      return coinbase;
+   }
+
+   public int numInputs() {
+      return (ints.length - 1) / 3;
+   }
+
+   public int numOutputs() {
+      return keys.length;
+   }
+
+   public byte[] getPrevTxHash(int index) {
+      return field(1 + 2 * index);
+   }
+
+   public int getOutputIndex(int index) {
+      return ints[2 + 3 * index];
+   }
+
+   public byte[] getSignature(int index) {
+      return field(2 + 2 * index);
+   }
+
+   // Returns the outpoint input <index> claims
+   public UTXO getClaimedUTXO(int index) {
+      return new UTXO(getPrevTxHash(index), getOutputIndex(index));
+   }
+
+   // Returns the value of output <index> in base units. Throws
+   // ArithmeticException if it is not a whole number of them.
+   public long getAmount(int index) {
+      return amounts != null ? amounts[index] : Amount.toUnits(values[index]);
+   }
+
+   // Returns the value of output <index> in coins, as it was given
+   public double getValue(int index) {
+      return amounts != null ? Amount.toCoins(amounts[index]) : values[index];
+   }
+
+   // Returns the address of output <index>
+   public RSAKey getAddress(int index) {
+      return keys[index];
+   }
+
+   // Returns a new Output object for output <index>
+   public Transaction.Output getOutput(int index) {
+      return new Transaction.Output(getValue(index), keys[index]);
+   }
+
+   // Returns a mutable Transaction equal to this one, hash included
+   public Transaction toTransaction() {
+      Transaction tx = Transaction.thaw(coinbase, getHash());
+      for (int i = 0; i < numInputs(); i++) {
+         tx.addInput(getPrevTxHash(i), getOutputIndex(i));
+         tx.getInput(i).signature = getSignature(i);
+      }
+      for (int i = 0; i < numOutputs(); i++)
+         tx.getOutputs().add(getOutput(i));
+      return tx;
+   }
+
+   /* The bytes input <index> signs, the same as
+    * Transaction.getRawDataToSign: its outpoint and every output
+    */
+   public byte[] getRawDataToSign(int index) {
+      if (index >= numInputs())
+         return null;
+      byte[] outputs = outputBytes();
+      ByteBuffer b = ByteBuffer.allocate(fieldLength(1 + 2 * index) + 4 + outputs.length);
+      putField(b, 1 + 2 * index);
+      b.putInt(getOutputIndex(index));
+      b.put(outputs);
+      return b.array();
+   }
+
+   // The bytes the hash covers, the same as Transaction.getRawTx
+   public byte[] getRawTx() {
+      byte[] outputs = outputBytes();
+      int len = outputs.length;
+      for (int i = 0; i < numInputs(); i++)
+         len += fieldLength(1 + 2 * i) + 4 + fieldLength(2 + 2 * i);
+      ByteBuffer b = ByteBuffer.allocate(len);
+      for (int i = 0; i < numInputs(); i++) {
+         putField(b, 1 + 2 * i);
+         b.putInt(getOutputIndex(i));
+         putField(b, 2 + 2 * i);
+      }
+      b.put(outputs);
+      return b.array();
+   }
+
+   // the encoded outputs, as the raw forms end with them
+   private byte[] outputBytes() {
+      byte[][] encoded = new byte[2 * numOutputs()][];
+      int len = 0;
+      for (int i = 0; i < numOutputs(); i++) {
+         encoded[2 * i] = Address.exponentBytes(keys[i]);
+         encoded[2 * i + 1] = Address.modulusBytes(keys[i]);
+         len += Double.SIZE/8 + encoded[2 * i].length + encoded[2 * i + 1].length;
+      }
+      ByteBuffer b = ByteBuffer.allocate(len);
+      for (int i = 0; i < numOutputs(); i++) {
+         b.putDouble(getValue(i));
+         b.put(encoded[2 * i]);
+         b.put(encoded[2 * i + 1]);
+      }
+      return b.array();
+   }
+}
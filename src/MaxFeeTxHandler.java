@@ -0,0 +1,378 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/* Like TxHandler, but instead of accepting transactions greedily in input
+ * order it returns the mutually valid subset with the largest total fee.
+ *
+ * Candidates that can never be valid (bad signature, unknown input, input
+ * sum < output sum, ...) are dropped first. The rest form a graph in which
+ * two transactions conflict if they claim the same output, and a transaction
+ * depends on every candidate whose output it claims. Connected components of
+ * that graph are independent, so each is solved on its own, in parallel on
+ * the common fork-join pool when there are several: small components exactly by branch-and-bound, large
+ * ones (or ones that run out of search budget) by a greedy package heuristic.
+ */
+public class MaxFeeTxHandler {
+   // components up to this size are searched exhaustively
+   public static final int EXACT_LIMIT = 24;
+   // branch-and-bound nodes explored per component before settling for the
+   // best selection found so far
+   public static final int SEARCH_BUDGET = 1 << 20;
+
+   // a candidate transaction and its place in the conflict graph
+   private static class Node {
+      public final Transaction tx;
+      public final UTXO[] inputs;
+      public long fee;
+      // signatures already checked by an earlier pass
+      public boolean verified;
+      // candidates whose outputs this one claims
+      public ArrayList<Node> parents = new ArrayList<Node>();
+      // position in topological order within the component
+      public int order;
+
+      public Node(Transaction tx) {
+         this.tx = tx;
+         inputs = new UTXO[tx.numInputs()];
+         for (int i = 0; i < inputs.length; i++) {
+            Transaction.Input in = tx.getInput(i);
+            inputs[i] = new UTXO(in.prevTxHash, in.outputIndex);
+         }
+      }
+   }
+
+   private UTXOPool pool;
+
+   /* Creates a handler whose current UTXOPool is a defensive copy of utxoPool */
+   public MaxFeeTxHandler(UTXOPool utxoPool) {
+      pool = new UTXOPool(utxoPool);
+   }
+
+   public UTXOPool getUTXOPool() {
+      return pool;
+   }
+
+   /* Returns the mutually valid subset of possibleTxs with maximum total fee,
+    * parents before children, and applies it to the current UTXO pool.
+    */
+   public Transaction[] handleTxs(Transaction[] possibleTxs) {
+      List<Node> nodes = buildGraph(possibleTxs);
+      List<List<Node>> components = splitComponents(nodes);
+      List<List<Node>> chosen = components.size() > 1
+            ? components.parallelStream().map(MaxFeeTxHandler::solve).collect(Collectors.toList())
+            : components.stream().map(MaxFeeTxHandler::solve).collect(Collectors.toList());
+
+      ArrayList<Transaction> accepted = new ArrayList<Transaction>();
+      for (List<Node> selection : chosen) {
+         for (Node n : selection) {
+            for (UTXO ut : n.inputs)
+               pool.removeUTXO(ut);
+            for (int j = 0; j < n.tx.numOutputs(); j++)
+               pool.addUTXO(new UTXO(n.tx.getHash(), j), n.tx.getOutput(j));
+            accepted.add(n.tx);
+         }
+      }
+      return accepted.toArray(new Transaction[0]);
+   }
+
+   /* Drops candidates that cannot be valid in any selection and links the
+    * rest to the candidates they spend from. Repeats until nothing changes,
+    * since dropping a parent can orphan its children.
+    */
+   private List<Node> buildGraph(Transaction[] possibleTxs) {
+      HashMap<ByteArrayWrapper, Node> byHash = new HashMap<ByteArrayWrapper, Node>();
+      for (Transaction tx : possibleTxs) {
+         if (tx == null || tx.getHash() == null)
+            continue;
+         ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
+         if (!byHash.containsKey(hash))
+            byHash.put(hash, new Node(tx));
+      }
+      boolean changed = true;
+      while (changed) {
+         changed = false;
+         for (Node n : new ArrayList<Node>(byHash.values())) {
+            if (!check(n, byHash)) {
+               byHash.remove(new ByteArrayWrapper(n.tx.getHash()));
+               changed = true;
+            }
+         }
+      }
+      ArrayList<Node> nodes = new ArrayList<Node>(byHash.values());
+      for (Node n : nodes) {
+         n.parents.clear();
+         for (UTXO ut : n.inputs) {
+            Node parent = byHash.get(new ByteArrayWrapper(ut.getTxHash()));
+            if (parent != null && !pool.contains(ut) && !n.parents.contains(parent))
+               n.parents.add(parent);
+         }
+      }
+      return nodes;
+   }
+
+   // true if n is valid provided every candidate it spends from is accepted;
+   // also records its fee
+   private boolean check(Node n, HashMap<ByteArrayWrapper, Node> byHash) {
+      try {
+         return checkAmounts(n, byHash);
+      } catch (ArithmeticException x) {
+         // a value that is not finite or a sum out of range
+         return false;
+      }
+   }
+
+   private boolean checkAmounts(Node n, HashMap<ByteArrayWrapper, Node> byHash) {
+      HashSet<UTXO> seen = new HashSet<UTXO>();
+      double[] inValues = new double[n.inputs.length];
+      for (int i = 0; i < n.inputs.length; i++) {
+         UTXO ut = n.inputs[i];
+         if (!seen.add(ut))
+            return false;
+         Transaction.Output prevOut = pool.getTxOutput(ut);
+         if (prevOut == null) {
+            Node parent = byHash.get(new ByteArrayWrapper(ut.getTxHash()));
+            if (parent != null && ut.getIndex() >= 0 && ut.getIndex() < parent.tx.numOutputs())
+               prevOut = parent.tx.getOutput(ut.getIndex());
+         }
+         if (prevOut == null)
+            return false;
+         if (!n.verified && !prevOut.address.verifySignature(n.tx.getRawDataToSign(i), n.tx.getInput(i).signature))
+            return false;
+         inValues[i] = prevOut.value;
+      }
+      double[] outValues = new double[n.tx.numOutputs()];
+      for (int i = 0; i < outValues.length; i++) {
+         Transaction.Output op = n.tx.getOutput(i);
+         if (op.value < 0)
+            return false;
+         outValues[i] = op.value;
+      }
+      long fee = Amount.net(inValues, outValues);
+      if (fee < 0)
+         return false;
+      n.fee = fee;
+      n.verified = true;
+      return true;
+   }
+
+   // groups nodes that share an input or depend on each other, each group
+   // in topological order (parents first)
+   private List<List<Node>> splitComponents(List<Node> nodes) {
+      int[] parent = new int[nodes.size()];
+      for (int i = 0; i < parent.length; i++) {
+         parent[i] = i;
+         nodes.get(i).order = i;
+      }
+      HashMap<UTXO, Integer> claimedBy = new HashMap<UTXO, Integer>();
+      for (int i = 0; i < nodes.size(); i++) {
+         Node n = nodes.get(i);
+         for (UTXO ut : n.inputs) {
+            Integer other = claimedBy.put(ut, i);
+            if (other != null)
+               union(parent, i, other);
+         }
+         for (Node p : n.parents)
+            union(parent, i, p.order);
+      }
+      HashMap<Integer, List<Node>> groups = new HashMap<Integer, List<Node>>();
+      List<List<Node>> components = new ArrayList<List<Node>>();
+      for (Node n : topologicalOrder(nodes)) {
+         int root = find(parent, n.order);
+         List<Node> group = groups.get(root);
+         if (group == null) {
+            group = new ArrayList<Node>();
+            groups.put(root, group);
+            components.add(group);
+         }
+         group.add(n);
+      }
+      for (List<Node> group : components)
+         for (int i = 0; i < group.size(); i++)
+            group.get(i).order = i;
+      return components;
+   }
+
+   private static List<Node> topologicalOrder(List<Node> nodes) {
+      ArrayList<Node> sorted = new ArrayList<Node>();
+      HashSet<Node> done = new HashSet<Node>();
+      for (Node n : nodes)
+         visit(n, done, sorted);
+      return sorted;
+   }
+
+   // appends n and its ancestors not done yet to sorted, parents first;
+   // depth-first with an explicit stack, as chains of candidates can be
+   // longer than the call stack is deep
+   private static void visit(Node n, HashSet<Node> done, ArrayList<Node> sorted) {
+      if (!done.add(n))
+         return;
+      ArrayList<Node> path = new ArrayList<Node>();
+      // per node on the path, the next of its parents to visit
+      ArrayList<Integer> next = new ArrayList<Integer>();
+      path.add(n);
+      next.add(0);
+      while (!path.isEmpty()) {
+         int top = path.size() - 1;
+         Node m = path.get(top);
+         int i = next.get(top);
+         if (i < m.parents.size()) {
+            next.set(top, i + 1);
+            Node p = m.parents.get(i);
+            if (done.add(p)) {
+               path.add(p);
+               next.add(0);
+            }
+         } else {
+            path.remove(top);
+            next.remove(top);
+            sorted.add(m);
+         }
+      }
+   }
+
+   private static int find(int[] parent, int i) {
+      while (parent[i] != i) {
+         parent[i] = parent[parent[i]];
+         i = parent[i];
+      }
+      return i;
+   }
+
+   private static void union(int[] parent, int a, int b) {
+      parent[find(parent, a)] = find(parent, b);
+   }
+
+   /* Best selection for one component, in topological order */
+   private static List<Node> solve(List<Node> component) {
+      List<Node> greedy = greedy(component);
+      if (component.size() > EXACT_LIMIT)
+         return greedy;
+      Search s = new Search(component, greedy);
+      s.branch(0, 0);
+      return s.best;
+   }
+
+   // exhaustive include/exclude search over a component in topological order
+   private static class Search {
+      private final List<Node> nodes;
+      // fee of nodes[i..] summed, an upper bound on what is left to gain
+      private final long[] suffixFees;
+      private final boolean[] taken;
+      private final HashSet<UTXO> claimed = new HashSet<UTXO>();
+      public List<Node> best;
+      private long bestFee;
+      private int budget = SEARCH_BUDGET;
+
+      public Search(List<Node> nodes, List<Node> start) {
+         this.nodes = nodes;
+         suffixFees = new long[nodes.size() + 1];
+         for (int i = nodes.size() - 1; i >= 0; i--)
+            suffixFees[i] = suffixFees[i + 1] + nodes.get(i).fee;
+         taken = new boolean[nodes.size()];
+         best = start;
+         bestFee = totalFee(start);
+      }
+
+      public void branch(int i, long fee) {
+         if (--budget < 0 || fee + suffixFees[i] <= bestFee)
+            return;
+         if (i == nodes.size()) {
+            bestFee = fee;
+            best = new ArrayList<Node>();
+            for (int j = 0; j < nodes.size(); j++)
+               if (taken[j])
+                  best.add(nodes.get(j));
+            return;
+         }
+         Node n = nodes.get(i);
+         if (canTake(n)) {
+            taken[i] = true;
+            for (UTXO ut : n.inputs)
+               claimed.add(ut);
+            branch(i + 1, fee + n.fee);
+            for (UTXO ut : n.inputs)
+               claimed.remove(ut);
+            taken[i] = false;
+         }
+         branch(i + 1, fee);
+      }
+
+      private boolean canTake(Node n) {
+         for (Node p : n.parents)
+            if (!taken[p.order])
+               return false;
+         for (UTXO ut : n.inputs)
+            if (claimed.contains(ut))
+               return false;
+         return true;
+      }
+   }
+
+   /* Repeatedly takes the candidate whose package (itself plus any ancestors
+    * not taken yet) pays the most, as long as the package fits with what is
+    * already taken. Returns the selection in topological order.
+    */
+   private static List<Node> greedy(List<Node> component) {
+      final HashMap<Node, Long> packageFee = new HashMap<Node, Long>();
+      for (Node n : component) {
+         long fee = n.fee;
+         for (Node a : ancestors(n))
+            fee += a.fee;
+         packageFee.put(n, fee);
+      }
+      ArrayList<Node> byFee = new ArrayList<Node>(component);
+      Collections.sort(byFee, new Comparator<Node>() {
+         public int compare(Node a, Node b) {
+            int c = Long.compare(packageFee.get(b), packageFee.get(a));
+            return c != 0 ? c : Integer.compare(a.order, b.order);
+         }
+      });
+      boolean[] taken = new boolean[component.size()];
+      HashSet<UTXO> claimed = new HashSet<UTXO>();
+      for (Node n : byFee) {
+         if (taken[n.order])
+            continue;
+         ArrayList<Node> pkg = new ArrayList<Node>();
+         for (Node a : ancestors(n))
+            if (!taken[a.order])
+               pkg.add(a);
+         pkg.add(n);
+         HashSet<UTXO> inputs = new HashSet<UTXO>();
+         boolean fits = true;
+         for (Node m : pkg)
+            for (UTXO ut : m.inputs)
+               if (claimed.contains(ut) || !inputs.add(ut))
+                  fits = false;
+         if (!fits)
+            continue;
+         claimed.addAll(inputs);
+         for (Node m : pkg)
+            taken[m.order] = true;
+      }
+      ArrayList<Node> selection = new ArrayList<Node>();
+      for (Node n : component)
+         if (taken[n.order])
+            selection.add(n);
+      return selection;
+   }
+
+   private static ArrayList<Node> ancestors(Node n) {
+      ArrayList<Node> sorted = new ArrayList<Node>();
+      HashSet<Node> done = new HashSet<Node>();
+      for (Node p : n.parents)
+         visit(p, done, sorted);
+      return sorted;
+   }
+
+   private static long totalFee(List<Node> selection) {
+      long fee = 0;
+      for (Node n : selection)
+         fee += n.fee;
+      return fee;
+   }
+}
@@ -0,0 +1,104 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/* Holds blocks whose parent has not arrived yet, indexed by the missing
+ * parent hash so they can be connected as soon as the parent is. The pool
+ * is bounded; the oldest orphan goes first when it is full, and orphans that
+ * waited longer than the expiry time are dropped. Thread safe.
+ */
+public class OrphanBlockPool {
+   public static final int MAX_ORPHANS = 64;
+   public static final long EXPIRY_MILLIS = 20 * 60 * 1000;
+
+   private static class Orphan {
+      public final Block b;
+      public final long arrival;
+
+      public Orphan(Block b, long arrival) {
+         this.b = b;
+         this.arrival = arrival;
+      }
+   }
+
+   // orphans in arrival order, oldest first
+   private LinkedHashMap<ByteArrayWrapper, Orphan> H;
+   // missing parent hash -> hashes of orphans waiting on it
+   private HashMap<ByteArrayWrapper, ArrayList<ByteArrayWrapper>> waiting;
+   private int maxOrphans;
+   private long expiryMillis;
+
+   public OrphanBlockPool() {
+      this(MAX_ORPHANS, EXPIRY_MILLIS);
+   }
+
+   public OrphanBlockPool(int maxOrphans, long expiryMillis) {
+      H = new LinkedHashMap<ByteArrayWrapper, Orphan>();
+      waiting = new HashMap<ByteArrayWrapper, ArrayList<ByteArrayWrapper>>();
+      this.maxOrphans = maxOrphans;
+      this.expiryMillis = expiryMillis;
+   }
+
+   // Buffers <b> until its parent is connected
+   public synchronized void addBlock(Block b) {
+      ByteArrayWrapper hash = new ByteArrayWrapper(b.getHash());
+      if (H.containsKey(hash) || maxOrphans <= 0)
+         return;
+      long now = System.currentTimeMillis();
+      expire(now);
+      while (H.size() >= maxOrphans) {
+         Iterator<ByteArrayWrapper> oldest = H.keySet().iterator();
+         remove(oldest.next());
+      }
+      H.put(hash, new Orphan(b, now));
+      ByteArrayWrapper parent = new ByteArrayWrapper(b.getPrevBlockHash());
+      ArrayList<ByteArrayWrapper> w = waiting.get(parent);
+      if (w == null) {
+         w = new ArrayList<ByteArrayWrapper>();
+         waiting.put(parent, w);
+      }
+      w.add(hash);
+   }
+
+   // Removes and returns every orphan whose parent is the block <parentHash>
+   public synchronized ArrayList<Block> removeChildrenOf(byte[] parentHash) {
+      ArrayList<Block> B = new ArrayList<Block>();
+      ArrayList<ByteArrayWrapper> w = waiting.get(new ByteArrayWrapper(parentHash));
+      if (w == null)
+         return B;
+      for (ByteArrayWrapper hash : new ArrayList<ByteArrayWrapper>(w))
+         B.add(remove(hash).b);
+      return B;
+   }
+
+   public synchronized boolean contains(byte[] blockHash) {
+      return H.containsKey(new ByteArrayWrapper(blockHash));
+   }
+
+   public synchronized int size() {
+      return H.size();
+   }
+
+   // drops orphans that arrived more than expiryMillis before <now>
+   private void expire(long now) {
+      while (!H.isEmpty()) {
+         ByteArrayWrapper oldest = H.keySet().iterator().next();
+         if (now - H.get(oldest).arrival <= expiryMillis)
+            return;
+         remove(oldest);
+      }
+   }
+
+   private Orphan remove(ByteArrayWrapper hash) {
+      Orphan o = H.remove(hash);
+      if (o == null)
+         return null;
+      ByteArrayWrapper parent = new ByteArrayWrapper(o.b.getPrevBlockHash());
+      ArrayList<ByteArrayWrapper> w = waiting.get(parent);
+      w.remove(hash);
+      if (w.isEmpty())
+         waiting.remove(parent);
+      return o;
+   }
+}
@@ -0,0 +1,105 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/* Holds transactions that claim outputs we have not seen yet, indexed by the
+ * missing outpoints so they can be retried as soon as a parent shows up.
+ * The pool is bounded; when full the oldest orphan is dropped. Orphans are
+ * kept frozen (see FrozenTransaction) and handed out as copies.
+ */
+public class OrphanTxPool {
+   public static final int MAX_ORPHANS = 100;
+
+   // orphans in arrival order, oldest first
+   private LinkedHashMap<ByteArrayWrapper, FrozenTransaction> H;
+   // orphan hash -> outpoints it is waiting on
+   private HashMap<ByteArrayWrapper, ArrayList<UTXO>> missing;
+   // missing outpoint -> orphans waiting on it
+   private HashMap<UTXO, ArrayList<ByteArrayWrapper>> waiting;
+   private int maxOrphans;
+
+   public OrphanTxPool() {
+      this(MAX_ORPHANS);
+   }
+
+   public OrphanTxPool(int maxOrphans) {
+      H = new LinkedHashMap<ByteArrayWrapper, FrozenTransaction>();
+      missing = new HashMap<ByteArrayWrapper, ArrayList<UTXO>>();
+      waiting = new HashMap<UTXO, ArrayList<ByteArrayWrapper>>();
+      this.maxOrphans = maxOrphans;
+   }
+
+   /* Adds <tx> as an orphan waiting on the outpoints in <missingInputs>.
+    * Orphans are indexed by hash, so a transaction whose hash does not
+    * match its contents is not taken; it could otherwise hold the hash of
+    * a real transaction. Two orphans with the same (matching) hash are the
+    * same transaction, which is kept once.
+    */
+   public void addTransaction(Transaction tx, ArrayList<UTXO> missingInputs) {
+      if (maxOrphans <= 0 || !BlockChain.hashMatches(tx))
+         return;
+      ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
+      if (H.containsKey(hash))
+         return;
+      while (H.size() >= maxOrphans) {
+         Iterator<ByteArrayWrapper> oldest = H.keySet().iterator();
+         remove(oldest.next());
+      }
+      H.put(hash, tx.freeze());
+      missing.put(hash, missingInputs);
+      for (UTXO ut : missingInputs) {
+         ArrayList<ByteArrayWrapper> w = waiting.get(ut);
+         if (w == null) {
+            w = new ArrayList<ByteArrayWrapper>();
+            waiting.put(ut, w);
+         }
+         w.add(hash);
+      }
+   }
+
+   public Transaction removeTransaction(byte[] txHash) {
+      FrozenTransaction tx = remove(new ByteArrayWrapper(txHash));
+      return tx == null ? null : tx.toTransaction();
+   }
+
+   private FrozenTransaction remove(ByteArrayWrapper hash) {
+      FrozenTransaction tx = H.remove(hash);
+      if (tx == null)
+         return null;
+      for (UTXO ut : missing.remove(hash)) {
+         ArrayList<ByteArrayWrapper> w = waiting.get(ut);
+         w.remove(hash);
+         if (w.isEmpty())
+            waiting.remove(ut);
+      }
+      return tx;
+   }
+
+   // Removes and returns every orphan waiting on outpoint <ut>
+   public ArrayList<Transaction> removeWaitingOn(UTXO ut) {
+      ArrayList<Transaction> T = new ArrayList<Transaction>();
+      ArrayList<ByteArrayWrapper> w = waiting.get(ut);
+      if (w == null)
+         return T;
+      for (ByteArrayWrapper hash : new ArrayList<ByteArrayWrapper>(w))
+         T.add(remove(hash).toTransaction());
+      return T;
+   }
+
+   public boolean contains(byte[] txHash) {
+      return H.containsKey(new ByteArrayWrapper(txHash));
+   }
+
+   public int size() {
+      return H.size();
+   }
+
+   // Returns the orphans in arrival order
+   public ArrayList<Transaction> getTransactions() {
+      ArrayList<Transaction> T = new ArrayList<Transaction>();
+      for (FrozenTransaction tx : H.values())
+         T.add(tx.toTransaction());
+      return T;
+   }
+}
@@ -0,0 +1,91 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* Remembers which signatures already passed verification. An entry is
+ * keyed by a digest of everything the check depends on: the signed data
+ * (Transaction.getRawDataToSign, which covers the claimed outpoint and all
+ * outputs), the signature and the key it was checked against. It does not
+ * depend on the hash a transaction declares for itself, so a transaction
+ * carrying someone else's hash never finds their result. The cache is
+ * bounded and drops its oldest entries first. Safe for use from several
+ * threads.
+ */
+public class SignatureCache {
+   public static final int MAX_ENTRIES = 1 << 16;
+
+   private LinkedHashMap<ByteArrayWrapper, Boolean> H;
+
+   public SignatureCache() {
+      this(MAX_ENTRIES);
+   }
+
+   public SignatureCache(final int maxEntries) {
+      H = new LinkedHashMap<ByteArrayWrapper, Boolean>() {
+         protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, Boolean> eldest) {
+            return size() > maxEntries;
+         }
+      };
+   }
+
+   // Returns true if <signature> of <message> by <key> was verified before
+   public boolean contains(RSAKey key, byte[] message, byte[] signature) {
+      ByteArrayWrapper k = key(key, message, signature);
+      synchronized (this) {
+         return H.containsKey(k);
+      }
+   }
+
+   // Records that <signature> of <message> by <key> is valid
+   public void add(RSAKey key, byte[] message, byte[] signature) {
+      ByteArrayWrapper k = key(key, message, signature);
+      synchronized (this) {
+         H.put(k, Boolean.TRUE);
+      }
+   }
+
+   /* Returns key.verifySignature(message, signature), from the cache if it
+    * was verified before, recording a newly verified one. <cache> may be
+    * null.
+    */
+   public static boolean verify(SignatureCache cache, RSAKey key, byte[] message, byte[] signature) {
+      if (cache == null || message == null || signature == null)
+         return key.verifySignature(message, signature);
+      ByteArrayWrapper k = key(key, message, signature);
+      synchronized (cache) {
+         if (cache.H.containsKey(k))
+            return true;
+      }
+      if (!key.verifySignature(message, signature))
+         return false;
+      synchronized (cache) {
+         cache.H.put(k, Boolean.TRUE);
+      }
+      return true;
+   }
+
+   public synchronized int size() {
+      return H.size();
+   }
+
+   // SHA-256 of the length-prefixed message, signature and key
+   private static ByteArrayWrapper key(RSAKey key, byte[] message, byte[] signature) {
+      byte[] exponent = Address.exponentBytes(key);
+      byte[] modulus = Address.modulusBytes(key);
+      ByteBuffer lengths = ByteBuffer.allocate(4 * Integer.SIZE/8);
+      lengths.putInt(message.length).putInt(signature.length).putInt(exponent.length).putInt(modulus.length);
+      try {
+         MessageDigest md = MessageDigest.getInstance("SHA-256");
+         md.update(lengths.array());
+         md.update(message);
+         md.update(signature);
+         md.update(exponent);
+         md.update(modulus);
+         return new ByteArrayWrapper(md.digest());
+      } catch (NoSuchAlgorithmException x) {
+         throw new IllegalStateException(x);
+      }
+   }
+}
@@ -0,0 +1,653 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// Driver class for the node features of BlockChain and BlockHandler beyond
+// the basic processBlock / createBlock behaviour
+public class TestBlockChainFeatures {
+
+   public int nPeople;
+   public ArrayList<RSAKeyPair> people;
+
+   public TestBlockChainFeatures() {
+      this.nPeople = 48;
+
+      byte[] key = new byte[32];
+      for (int i = 0; i < 32; i++) {
+         key[i] = (byte) 2;
+      }
+
+      PRGen prGen = new PRGen(key);
+
+      people = new ArrayList<RSAKeyPair>();
+      for (int i = 0; i < nPeople; i++)
+         people.add(new RSAKeyPair(prGen, 265));
+   }
+
+   // a transaction moving output <index> of <prevHash>, owned by <from>,
+   // to <to> as a single output of <value>
+   private static Transaction spend(byte[] prevHash, int index, double value, RSAKeyPair from, RSAKeyPair to) {
+      Transaction tx = new Transaction();
+      tx.addInput(prevHash, index);
+      tx.addOutput(value, to.getPublicKey());
+      tx.addSignature(from.getPrivateKey().sign(tx.getRawDataToSign(0)), 0);
+      tx.finalize();
+      return tx;
+   }
+
+   // a transaction splitting the coinbase of <parent>, owned by <from>,
+   // into <n> outputs of <value> to <to>
+   private static Transaction split(Block parent, int n, double value, RSAKeyPair from, RSAKeyPair to) {
+      Transaction tx = new Transaction();
+      tx.addInput(parent.getCoinbase().getHash(), 0);
+      for (int i = 0; i < n; i++)
+         tx.addOutput(value, to.getPublicKey());
+      tx.addSignature(from.getPrivateKey().sign(tx.getRawDataToSign(0)), 0);
+      tx.finalize();
+      return tx;
+   }
+
+   // a block's hash does not cover its coinbase, so sibling branches start
+   // with different transactions; and blocks paying the same miner have
+   // coinbases with the same hash, so tests that spend or count coinbases
+   // give each block its own miner
+   private static Block block(Block parent, RSAKeyPair miner, Transaction... txs) {
+      Block block = new Block(parent.getHash(), miner.getPublicKey());
+      for (Transaction tx : txs)
+         block.addTransaction(tx);
+      block.finalize();
+      return block;
+   }
+
+   private static Block genesis(RSAKeyPair miner) {
+      Block genesisBlock = new Block(null, miner.getPublicKey());
+      genesisBlock.finalize();
+      return genesisBlock;
+   }
+
+   private static void deleteAll(File dir) {
+      File[] files = dir.listFiles();
+      if (files != null)
+         for (File f : files)
+            f.delete();
+      dir.delete();
+   }
+
+   public int test1() {
+      System.out.println("Reorganize onto a longer branch and put the transactions of the old branch back into the pool");
+
+      Block genesisBlock = genesis(people.get(0));
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      BlockHandler blockHandler = new BlockHandler(blockChain);
+
+      // branch A: a1 holding a transaction spending the genesis coinbase,
+      // then a2 holding one spending a1's coinbase
+      Transaction fromGenesis = spend(genesisBlock.getCoinbase().getHash(), 0, Block.COINBASE, people.get(0), people.get(3));
+      Block a1 = block(genesisBlock, people.get(1), fromGenesis);
+      Transaction fromA1 = spend(a1.getCoinbase().getHash(), 0, Block.COINBASE, people.get(1), people.get(3));
+      Block a2 = block(a1, people.get(2), fromA1);
+      boolean passes = blockHandler.processBlock(a1) && blockHandler.processBlock(a2);
+
+      // branch B overtakes A without touching the genesis coinbase
+      Block b = genesisBlock;
+      for (int i = 0; i < 3; i++) {
+         b = block(b, people.get(4 + i));
+         passes = passes && blockHandler.processBlock(b);
+      }
+
+      TransactionPool txPool = blockChain.getTransactionPool();
+      passes = passes && blockChain.getMaxHeightBlock() == b;
+      // still valid on B, so back in the pool; a1's coinbase is gone
+      passes = passes && txPool.contains(fromGenesis.getHash());
+      passes = passes && !txPool.contains(fromA1.getHash());
+
+      Block created = blockHandler.createBlock(people.get(3).getPublicKey());
+      passes = passes && created != null && created.getTransactions().size() == 1
+            && created.getTransaction(0).equals(fromGenesis);
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test2() throws IOException {
+      System.out.println("Reorganize onto a branch forking below the retained window, through the undo log");
+
+      File dir = Files.createTempDirectory("undo").toFile();
+      try {
+         Block genesisBlock = genesis(people.get(0));
+         BlockChain blockChain = new BlockChain(genesisBlock);
+         BlockHandler blockHandler = new BlockHandler(blockChain);
+         blockChain.enableDeepReorgs(dir, 4 * BlockChain.CUT_OFF_AGE);
+
+         // main chain of 2 * CUT_OFF_AGE blocks; block 6 spends the
+         // coinbase of block 2, which both branches share
+         ArrayList<Block> main = new ArrayList<Block>();
+         main.add(genesisBlock);
+         Transaction fromShared = null;
+         boolean passes = true;
+         for (int i = 1; i <= 2 * BlockChain.CUT_OFF_AGE; i++) {
+            Block parent = main.get(i - 1);
+            Block next;
+            if (i == 6) {
+               fromShared = spend(main.get(2).getCoinbase().getHash(), 0, Block.COINBASE, people.get(2), people.get(0));
+               next = block(parent, people.get(i), fromShared);
+            } else {
+               next = block(parent, people.get(i));
+            }
+            passes = passes && blockHandler.processBlock(next);
+            main.add(next);
+         }
+
+         // a fork off block 4, below the window, spending its coinbase
+         Transaction onFork = spend(main.get(4).getCoinbase().getHash(), 0, Block.COINBASE, people.get(4), people.get(0));
+         int forkLength = 2 * BlockChain.CUT_OFF_AGE - 4 + 1;
+         Block f = main.get(4);
+         for (int i = 0; i < forkLength; i++) {
+            RSAKeyPair miner = people.get(2 * BlockChain.CUT_OFF_AGE + 1 + i);
+            f = i == 0 ? block(f, miner, onFork) : block(f, miner);
+            boolean added = blockHandler.processBlock(f);
+            // pending until the fork outgrows the main chain
+            passes = passes && added == (i == forkLength - 1);
+         }
+
+         passes = passes && blockChain.getMaxHeightBlock() == f;
+         passes = passes && blockChain.getHeight() == 2 * BlockChain.CUT_OFF_AGE + 2;
+         UTXOPool utxoPool = blockChain.getMaxHeightUTXOPool();
+         passes = passes && utxoPool.contains(new UTXO(onFork.getHash(), 0));
+         passes = passes && !utxoPool.contains(new UTXO(main.get(10).getCoinbase().getHash(), 0));
+         passes = passes && utxoPool.contains(new UTXO(main.get(2).getCoinbase().getHash(), 0));
+         passes = passes && blockChain.getTransactionPool().contains(fromShared.getHash());
+
+         // the old main chain is now the deep fork, and too short
+         passes = passes && !blockHandler.processBlock(block(main.get(main.size() - 1), people.get(nPeople - 1)));
+         return UtilCOS.printPassFail(passes);
+      } finally {
+         deleteAll(dir);
+      }
+   }
+
+   public int test3() {
+      System.out.println("Process blocks whose hash does not match their contents");
+
+      Block genesisBlock = genesis(people.get(0));
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      BlockHandler blockHandler = new BlockHandler(blockChain);
+
+      Transaction valid = spend(genesisBlock.getCoinbase().getHash(), 0, Block.COINBASE, people.get(0), people.get(1));
+      byte[] unknown = new byte[32];
+      unknown[0] = 1;
+      Transaction invalid = spend(unknown, 0, 1, people.get(0), people.get(1));
+
+      // a block claiming the hash of a1 while holding an invalid transaction
+      Block a1 = block(genesisBlock, people.get(1), valid);
+      Block forged = block(genesisBlock, people.get(2), valid);
+      forged.getTransactions().set(0, invalid);
+      boolean passes = !blockHandler.processBlock(forged);
+      passes = passes && blockChain.getRejectReason(a1.getHash()) == null;
+      passes = passes && blockHandler.processBlock(a1);
+      passes = passes && blockChain.isKnownValid(a1.getHash());
+
+      // in a batch, the run stops short of the forged block and the
+      // genuine one still connects afterwards
+      Block a2 = block(a1, people.get(3));
+      Block a3 = block(a2, people.get(4));
+      Block a4 = block(a3, people.get(5), spend(a1.getCoinbase().getHash(), 0, Block.COINBASE, people.get(1), people.get(2)));
+      Block forged4 = block(a3, people.get(6), a4.getTransaction(0));
+      forged4.getTransactions().set(0, invalid);
+      Block a5 = block(a4, people.get(7));
+      Block a6 = block(a5, people.get(8));
+      ArrayList<Block> batch = new ArrayList<Block>();
+      batch.add(a2);
+      batch.add(a3);
+      batch.add(forged4);
+      batch.add(a5);
+      batch.add(a6);
+      passes = passes && blockChain.addBlocks(batch) == 2;
+      passes = passes && blockChain.getRejectReason(a4.getHash()) == null;
+      passes = passes && blockHandler.processBlock(a4);
+      passes = passes && blockChain.getMaxHeightBlock() == a6;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test4() {
+      System.out.println("Process blocks before their parents");
+
+      Block genesisBlock = genesis(people.get(0));
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      BlockHandler blockHandler = new BlockHandler(blockChain);
+      OrphanBlockPool orphans = blockChain.getOrphanBlockPool();
+
+      // b1 <- b2 <- b3, and a sibling c2 of b2, arriving newest first
+      Block b1 = block(genesisBlock, people.get(1));
+      Block b2 = block(b1, people.get(2));
+      Block b3 = block(b2, people.get(3));
+      Block c2 = block(b1, people.get(4), spend(b1.getCoinbase().getHash(), 0, Block.COINBASE, people.get(1), people.get(5)));
+      boolean passes = !blockHandler.processBlock(b3) && !blockHandler.processBlock(b2);
+      passes = passes && !blockHandler.processBlock(c2);
+      passes = passes && orphans.size() == 3 && orphans.contains(b3.getHash());
+      // an orphan twice is kept once
+      passes = passes && !blockHandler.processBlock(b3) && orphans.size() == 3;
+
+      passes = passes && blockHandler.processBlock(b1);
+      passes = passes && orphans.size() == 0;
+      passes = passes && blockChain.getMaxHeightBlock() == b3;
+      passes = passes && blockChain.isKnownValid(c2.getHash());
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test5() {
+      System.out.println("Look up ancestors and fork points across the skip pointers and below the window");
+
+      Block genesisBlock = genesis(people.get(0));
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      BlockHandler blockHandler = new BlockHandler(blockChain);
+
+      // main chain up to height 2 * CUT_OFF_AGE + 1, main.get(i) at height
+      // i + 1; a side branch off height 4 trails it by 7 blocks, so it stays
+      // in the window while its fork point drops out
+      ArrayList<Block> main = new ArrayList<Block>();
+      ArrayList<Block> side = new ArrayList<Block>();
+      main.add(genesisBlock);
+      boolean passes = true;
+      for (int i = 1; i <= 2 * BlockChain.CUT_OFF_AGE; i++) {
+         Block next = block(main.get(i - 1), people.get(i));
+         passes = passes && blockHandler.processBlock(next);
+         main.add(next);
+         if (i < 11)
+            continue;
+         Block s = side.isEmpty()
+               ? block(main.get(3), people.get(21), spend(main.get(2).getCoinbase().getHash(), 0, Block.COINBASE, people.get(2), people.get(0)))
+               : block(side.get(side.size() - 1), people.get(21 + side.size()));
+         passes = passes && blockHandler.processBlock(s);
+         side.add(s);
+      }
+      Block tip = main.get(main.size() - 1);
+      Block sideTip = side.get(side.size() - 1);
+      int top = 2 * BlockChain.CUT_OFF_AGE + 1;
+      int bottom = top - BlockChain.CUT_OFF_AGE;
+      passes = passes && blockChain.getMaxHeightBlock() == tip;
+
+      for (int h = 1; h <= top + 1; h++) {
+         Block expected = h >= bottom && h <= top ? main.get(h - 1) : null;
+         passes = passes && blockChain.getAncestor(tip.getHash(), h) == expected;
+      }
+      passes = passes && blockChain.getAncestor(sideTip.getHash(), 4 + side.size()) == sideTip;
+      passes = passes && blockChain.getAncestor(sideTip.getHash(), bottom) == side.get(bottom - 5);
+      passes = passes && blockChain.getAncestor(sideTip.getHash(), bottom - 1) == null;
+      passes = passes && blockChain.findForkPoint(tip.getHash(), sideTip.getHash()) == null;
+
+      // a branch forking inside the window
+      Block f1 = block(main.get(15), people.get(40), spend(main.get(14).getCoinbase().getHash(), 0, Block.COINBASE, people.get(14), people.get(0)));
+      Block f2 = block(f1, people.get(41));
+      Block f3 = block(f2, people.get(42));
+      passes = passes && blockHandler.processBlock(f1) && blockHandler.processBlock(f2) && blockHandler.processBlock(f3);
+      passes = passes && blockChain.findForkPoint(tip.getHash(), f3.getHash()) == main.get(15);
+      passes = passes && blockChain.findForkPoint(f3.getHash(), tip.getHash()) == main.get(15);
+      passes = passes && blockChain.findForkPoint(main.get(17).getHash(), f2.getHash()) == main.get(15);
+      passes = passes && blockChain.findForkPoint(tip.getHash(), main.get(12).getHash()) == main.get(12);
+      passes = passes && blockChain.findForkPoint(tip.getHash(), tip.getHash()) == tip;
+      passes = passes && blockChain.findForkPoint(tip.getHash(), main.get(2).getHash()) == null;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test6() throws IOException {
+      System.out.println("Reorganize onto a branch forking below the window and put back the transactions of pruned blocks");
+
+      File dir = Files.createTempDirectory("undo").toFile();
+      try {
+         Block genesisBlock = genesis(people.get(0));
+         BlockChain blockChain = new BlockChain(genesisBlock);
+         BlockHandler blockHandler = new BlockHandler(blockChain);
+         blockChain.enableDeepReorgs(dir, 4 * BlockChain.CUT_OFF_AGE);
+
+         // as in test5, a side branch off height 4 trails the main chain;
+         // main.get(5) spends a coinbase both share, main.get(7) one only
+         // the main chain has, main.get(15) the genesis coinbase
+         ArrayList<Block> main = new ArrayList<Block>();
+         ArrayList<Block> side = new ArrayList<Block>();
+         main.add(genesisBlock);
+         Transaction fromShared = null;
+         Transaction fromOld = null;
+         Transaction retained = null;
+         boolean passes = true;
+         for (int i = 1; i <= 2 * BlockChain.CUT_OFF_AGE; i++) {
+            Block parent = main.get(i - 1);
+            Block next;
+            if (i == 5) {
+               fromShared = spend(main.get(1).getCoinbase().getHash(), 0, Block.COINBASE, people.get(1), people.get(0));
+               next = block(parent, people.get(i), fromShared);
+            } else if (i == 7) {
+               fromOld = spend(main.get(6).getCoinbase().getHash(), 0, Block.COINBASE, people.get(6), people.get(0));
+               next = block(parent, people.get(i), fromOld);
+            } else if (i == 15) {
+               retained = spend(genesisBlock.getCoinbase().getHash(), 0, Block.COINBASE, people.get(0), people.get(1));
+               next = block(parent, people.get(i), retained);
+            } else {
+               next = block(parent, people.get(i));
+            }
+            passes = passes && blockHandler.processBlock(next);
+            main.add(next);
+            if (i < 11)
+               continue;
+            Block s = side.isEmpty()
+                  ? block(main.get(3), people.get(21), spend(main.get(2).getCoinbase().getHash(), 0, Block.COINBASE, people.get(2), people.get(0)))
+                  : block(side.get(side.size() - 1), people.get(21 + side.size()));
+            passes = passes && blockHandler.processBlock(s);
+            side.add(s);
+         }
+
+         // the side branch overtakes the main chain
+         while (4 + side.size() <= 2 * BlockChain.CUT_OFF_AGE + 1) {
+            Block s = block(side.get(side.size() - 1), people.get(21 + side.size()));
+            passes = passes && blockHandler.processBlock(s);
+            side.add(s);
+         }
+         passes = passes && blockChain.getMaxHeightBlock() == side.get(side.size() - 1);
+
+         TransactionPool txPool = blockChain.getTransactionPool();
+         passes = passes && txPool.contains(fromShared.getHash());
+         passes = passes && !txPool.contains(fromOld.getHash());
+         passes = passes && txPool.contains(retained.getHash());
+         return UtilCOS.printPassFail(passes);
+      } finally {
+         deleteAll(dir);
+      }
+   }
+
+   public int test7() {
+      System.out.println("Shrink and grow the retained window with the memory budget");
+
+      Block genesisBlock = genesis(people.get(0));
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      BlockHandler blockHandler = new BlockHandler(blockChain);
+
+      // main.get(i) at height i + 1
+      ArrayList<Block> main = new ArrayList<Block>();
+      main.add(genesisBlock);
+      boolean passes = true;
+      for (int i = 1; i <= 15; i++) {
+         main.add(block(main.get(i - 1), people.get(i)));
+         passes = passes && blockHandler.processBlock(main.get(i));
+      }
+      passes = passes && blockChain.getRetentionWindow() == BlockChain.CUT_OFF_AGE;
+      long full = blockChain.getEstimatedBytes();
+
+      // shrinking prunes at once
+      blockChain.setMemoryBudget(full / 3, 2);
+      int window = blockChain.getRetentionWindow();
+      int top = main.size();
+      passes = passes && window >= 2 && window < BlockChain.CUT_OFF_AGE;
+      passes = passes && (blockChain.getEstimatedBytes() <= full / 3 || window == 2);
+      passes = passes && blockChain.getAncestor(main.get(top - 1).getHash(), top - window) == main.get(top - window - 1);
+      passes = passes && blockChain.getAncestor(main.get(top - 1).getHash(), top - window - 1) == null;
+
+      // but not below the minimum window
+      blockChain.setMemoryBudget(1, 3);
+      passes = passes && blockChain.getRetentionWindow() == 3;
+      try {
+         blockChain.setMemoryBudget(1, 0);
+         passes = false;
+      } catch (IllegalArgumentException x) {
+      }
+
+      // with room to spare it grows a height per block
+      blockChain.setMemoryBudget(Long.MAX_VALUE / 4, 2);
+      for (int i = 16; i <= 30; i++) {
+         main.add(block(main.get(i - 1), people.get(i)));
+         passes = passes && blockHandler.processBlock(main.get(i));
+      }
+      window = blockChain.getRetentionWindow();
+      top = main.size();
+      passes = passes && window > BlockChain.CUT_OFF_AGE;
+      // the levels pruned before are not back, but every new one is kept
+      passes = passes && blockChain.getAncestor(main.get(top - 1).getHash(), top - window + 1) == main.get(top - window);
+
+      // a branch deeper than CUT_OFF_AGE is now inside the window
+      int deep = top - BlockChain.CUT_OFF_AGE - 2;
+      Block fork = block(main.get(deep - 1), people.get(40), spend(main.get(deep - 2).getCoinbase().getHash(), 0, Block.COINBASE, people.get(deep - 2), people.get(0)));
+      passes = passes && blockHandler.processBlock(fork);
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test8() throws InterruptedException {
+      System.out.println("Process the blocks of two branches from several threads at once");
+
+      Block genesisBlock = genesis(people.get(0));
+      final BlockChain blockChain = new BlockChain(genesisBlock);
+      final ArrayList<Block> blocks = new ArrayList<Block>();
+      Block a = genesisBlock;
+      Block b = genesisBlock;
+      for (int i = 0; i < 8; i++) {
+         a = block(a, people.get(1));
+         blocks.add(a);
+      }
+      Transaction fromGenesis = spend(genesisBlock.getCoinbase().getHash(), 0, Block.COINBASE, people.get(0), people.get(2));
+      for (int i = 0; i < 9; i++) {
+         b = i == 0 ? block(b, people.get(2), fromGenesis) : block(b, people.get(2));
+         blocks.add(b);
+      }
+
+      // each thread hands in every block, in its own order
+      ArrayList<Thread> threads = new ArrayList<Thread>();
+      for (int t = 0; t < 4; t++) {
+         final List<Block> order = new ArrayList<Block>(blocks);
+         Collections.rotate(order, t * 5);
+         if (t % 2 == 1)
+            Collections.reverse(order);
+         threads.add(new Thread(() -> {
+            for (Block block : order)
+               blockChain.addBlock(block);
+         }));
+      }
+      for (Thread t : threads)
+         t.start();
+      for (Thread t : threads)
+         t.join();
+
+      boolean passes = blockChain.getMaxHeightBlock() == b && blockChain.getHeight() == 10;
+      passes = passes && blockChain.getOrphanBlockPool().size() == 0;
+      for (Block block : blocks)
+         passes = passes && blockChain.isKnownValid(block.getHash());
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test9() {
+      System.out.println("Remember why blocks were rejected");
+
+      Block genesisBlock = genesis(people.get(0));
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      BlockHandler blockHandler = new BlockHandler(blockChain);
+
+      byte[] unknown = new byte[32];
+      unknown[0] = 1;
+      Block invalid = block(genesisBlock, people.get(1), spend(unknown, 0, 1, people.get(0), people.get(1)));
+      boolean passes = !blockHandler.processBlock(invalid);
+      passes = passes && blockChain.getRejectReason(invalid.getHash()) == BlockChain.Reason.INVALID_TXS;
+      // answered from the cache the second time
+      passes = passes && !blockHandler.processBlock(invalid);
+      passes = passes && blockChain.getRejectReason(invalid.getHash()) == BlockChain.Reason.INVALID_TXS;
+
+      Block b = genesisBlock;
+      for (int i = 0; i < 2; i++) {
+         b = block(b, people.get(2 + i));
+         passes = passes && blockHandler.processBlock(b);
+      }
+      Block second = new Block(null, people.get(20).getPublicKey());
+      second.addTransaction(spend(genesisBlock.getCoinbase().getHash(), 0, 1, people.get(0), people.get(1)));
+      second.finalize();
+      passes = passes && !blockHandler.processBlock(second);
+      passes = passes && blockChain.getRejectReason(second.getHash()) == BlockChain.Reason.GENESIS;
+
+      // a duplicate says nothing about the block
+      passes = passes && !blockHandler.processBlock(b);
+      passes = passes && blockChain.getRejectReason(b.getHash()) == null && blockChain.isKnownValid(b.getHash());
+      passes = passes && BlockChain.Reason.GENESIS.toString().equals("genesis block");
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test10() {
+      System.out.println("Process blocks asynchronously, past the in-flight limit, then close the handler");
+
+      Block genesisBlock = genesis(people.get(0));
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      final BlockHandler blockHandler = new BlockHandler(blockChain);
+
+      final ArrayList<Block> blocks = new ArrayList<Block>();
+      Block b = genesisBlock;
+      for (int i = 0; i < 2 * BlockHandler.MAX_IN_FLIGHT; i++) {
+         b = block(b, people.get(1));
+         blocks.add(b);
+      }
+
+      // the rest is handed in from a callback on the connecting thread
+      final ArrayList<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>();
+      CompletableFuture<Void> handedIn = blockHandler.processBlockAsync(blocks.get(0)).thenAccept(ok -> {
+         synchronized (futures) {
+            for (Block block : blocks.subList(1, blocks.size()))
+               futures.add(blockHandler.processBlockAsync(block));
+         }
+      });
+      handedIn.join();
+      blockHandler.close();
+
+      boolean passes = true;
+      synchronized (futures) {
+         for (CompletableFuture<Boolean> f : futures)
+            passes = passes && f.isDone() && f.join();
+      }
+      passes = passes && blockChain.getMaxHeightBlock() == b;
+      try {
+         blockHandler.processBlockAsync(block(b, people.get(1)));
+         passes = false;
+      } catch (IllegalStateException x) {
+         // closed
+      }
+      passes = passes && blockHandler.processBlock(block(b, people.get(1)));
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test11() {
+      System.out.println("Process a batch of blocks with an invalid block in the middle");
+
+      Block genesisBlock = genesis(people.get(0));
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      BlockHandler blockHandler = new BlockHandler(blockChain);
+
+      ArrayList<Block> blocks = new ArrayList<Block>();
+      Block b = genesisBlock;
+      for (int i = 0; i < 8; i++) {
+         if (i == 4) {
+            // spends more than the coinbase it claims
+            b = block(b, people.get(1), spend(b.getCoinbase().getHash(), 0, 2 * Block.COINBASE, people.get(1), people.get(2)));
+         } else {
+            b = block(b, people.get(1));
+         }
+         blocks.add(b);
+      }
+
+      boolean passes = blockHandler.processBlocks(blocks) == 4;
+      passes = passes && blockChain.getMaxHeightBlock() == blocks.get(3);
+      passes = passes && blockChain.getRejectReason(blocks.get(4).getHash()) == BlockChain.Reason.INVALID_TXS;
+      // nothing built on it connects, and a second pass adds nothing
+      passes = passes && !blockChain.isKnownValid(blocks.get(5).getHash());
+      passes = passes && blockHandler.processBlocks(blocks.subList(0, 4)) == 0;
+      blockHandler.close();
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test12() {
+      System.out.println("Read a snapshot of the chain while new blocks and transactions arrive");
+
+      Block genesisBlock = genesis(people.get(0));
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      BlockHandler blockHandler = new BlockHandler(blockChain);
+
+      Transaction tx = spend(genesisBlock.getCoinbase().getHash(), 0, 20, people.get(0), people.get(1));
+      blockHandler.processTx(tx);
+      ChainSnapshot before = blockChain.getSnapshot();
+      Block b1 = blockHandler.createBlock(people.get(1).getPublicKey());
+      ChainSnapshot after = blockChain.getSnapshot();
+
+      boolean passes = b1 != null;
+      passes = passes && before.getMaxHeightBlock() == genesisBlock && before.getHeight() == 1;
+      passes = passes && before.getTransactionPool().contains(tx.getHash());
+      passes = passes && before.containsUTXO(new UTXO(genesisBlock.getCoinbase().getHash(), 0));
+      passes = passes && !before.containsUTXO(new UTXO(tx.getHash(), 0));
+      passes = passes && after.getVersion() > before.getVersion();
+      passes = passes && after.getMaxHeightBlock() == b1 && after.getHeight() == 2;
+      passes = passes && after.getTransactionPool().size() == 0;
+      passes = passes && after.containsUTXO(new UTXO(tx.getHash(), 0));
+      passes = passes && blockChain.getSnapshot() == after;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test13() {
+      System.out.println("Look up the balance and the UTXOs of an address");
+
+      Block genesisBlock = genesis(people.get(0));
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      BlockHandler blockHandler = new BlockHandler(blockChain);
+
+      Transaction splitTx = split(genesisBlock, 5, 5, people.get(0), people.get(2));
+      Block b1 = block(genesisBlock, people.get(1), splitTx);
+      Transaction tx = spend(splitTx.getHash(), 0, 5, people.get(2), people.get(3));
+      Block b2 = block(b1, people.get(0), tx);
+      boolean passes = blockHandler.processBlock(b1) && blockHandler.processBlock(b2);
+
+      UTXOPool utxoPool = blockChain.getMaxHeightUTXOPool();
+      passes = passes && utxoPool.isAddressIndexed();
+      passes = passes && utxoPool.getBalance(people.get(0).getPublicKey()) == Amount.toUnits(Block.COINBASE);
+      passes = passes && utxoPool.getBalance(people.get(1).getPublicKey()) == Amount.toUnits(Block.COINBASE);
+      passes = passes && utxoPool.getBalance(people.get(2).getPublicKey()) == 4 * Amount.toUnits(5);
+      passes = passes && utxoPool.countUTXOsOf(people.get(2).getPublicKey()) == 4;
+      ArrayList<UTXO> utxos = utxoPool.getUTXOsOf(people.get(3).getPublicKey());
+      passes = passes && utxos.size() == 1 && utxos.get(0).equals(new UTXO(tx.getHash(), 0));
+      passes = passes && blockChain.getSnapshot().getBalance(people.get(3).getPublicKey()) == Amount.toUnits(5);
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public static void main(String[] args) throws IOException, InterruptedException {
+      TestBlockChainFeatures tester = new TestBlockChainFeatures();
+
+      int total = 0;
+      int numTests = 13;
+
+      UtilCOS.printTotalNumTests(numTests);
+      System.out.println("######################\nReorganization tests:\n######################\n");
+      total += tester.test1();
+      total += tester.test2();
+
+      System.out.println("######################\nBlock validation tests:\n######################\n");
+      total += tester.test3();
+      total += tester.test4();
+      total += tester.test5();
+      total += tester.test6();
+      total += tester.test7();
+
+      System.out.println("######################\nConcurrency tests:\n######################\n");
+      total += tester.test8();
+      total += tester.test9();
+      total += tester.test10();
+      total += tester.test11();
+
+      System.out.println("######################\nSnapshot and lookup tests:\n######################\n");
+      total += tester.test12();
+      total += tester.test13();
+
+      System.out.println();
+      UtilCOS.printNumTestsPassed(total, numTests);
+   }
+}
@@ -0,0 +1,53 @@
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+// Driver class for MaxFeeTxHandler
+public class TestMaxFeeTxHandler {
+   private static boolean verify(Transaction[] allTxs, UTXOPool uPool) {
+      Transaction[] copyTxs = new Transaction[allTxs.length];
+      for (int i = 0; i < copyTxs.length; i++)
+         copyTxs[i] = allTxs[i];
+
+      MaxFeeTxHandler student = new MaxFeeTxHandler(new UTXOPool(uPool));
+      MaxFeeTxHandlerVerifier verifier = new MaxFeeTxHandlerVerifier(uPool);
+
+      System.out.println("Total Transactions = " + allTxs.length);
+      Transaction[] stx = student.handleTxs(copyTxs);
+      System.out.println("Number of transactions returned valid by student = " + stx.length);
+      return verifier.check(allTxs, stx);
+   }
+
+   public static int test1(UTXOPool uPool) throws FileNotFoundException, IOException {
+      System.out.println("Test 1: test handleTransactions() returns a maximum fee set of transactions");
+
+      String common = "files/SampleMaxFeeTxsTest1-";
+      String file1 = common + "1.txt";
+      String file2 = common + "2.txt";
+      String file3 = common + "3.txt";
+      Transaction[] allTxs1 = TransactionsArrayFileHandler.readTransactionsFromFile(file1);
+      Transaction[] allTxs2 = TransactionsArrayFileHandler.readTransactionsFromFile(file2);
+      Transaction[] allTxs3 = TransactionsArrayFileHandler.readTransactionsFromFile(file3);
+
+      boolean passed1 = verify(allTxs1, uPool);
+      boolean passed2 = verify(allTxs2, uPool);
+      boolean passed3 = verify(allTxs3, uPool);
+      return UtilCOS.printPassFail(passed1 && passed2 && passed3);
+   }
+
+   public static void main(String[] args) throws FileNotFoundException, IOException {
+      String skpFile = "files/SampleMaxFeeKeyPairs.txt";
+      String supFile = "files/SampleMaxFeeUTXOPool.txt";
+      SampleKeyPairs skp = SampleKeyPairsFileHandler.readKeyPairsFromFile(skpFile);
+      SampleUTXOPool sup = SampleUTXOPoolFileHandler.readSampleUTXOPoolFromFile(skp, supFile);
+
+      UTXOPool uPool = sup.getPool();
+      int total = 0;
+      int numTests = 1;
+
+      UtilCOS.printTotalNumTests(numTests);
+      total += test1(uPool);
+
+      System.out.println();
+      UtilCOS.printNumTestsPassed(total, numTests);
+   }
+}
@@ -0,0 +1,239 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+// Driver class for the transaction handling added on top of TxHandler:
+// parallel block validation and frozen transactions
+public class TestTransactionFeatures {
+
+   public int nPeople;
+   public ArrayList<RSAKeyPair> people;
+
+   public TestTransactionFeatures() {
+      this.nPeople = 8;
+
+      byte[] key = new byte[32];
+      for (int i = 0; i < 32; i++) {
+         key[i] = (byte) 4;
+      }
+
+      PRGen prGen = new PRGen(key);
+
+      people = new ArrayList<RSAKeyPair>();
+      for (int i = 0; i < nPeople; i++)
+         people.add(new RSAKeyPair(prGen, 265));
+   }
+
+   // a transaction moving output <index> of <prevHash>, owned by <from>,
+   // to <to> as a single output of <value>
+   private static Transaction spend(byte[] prevHash, int index, double value, RSAKeyPair from, RSAKeyPair to) {
+      Transaction tx = new Transaction();
+      tx.addInput(prevHash, index);
+      tx.addOutput(value, to.getPublicKey());
+      tx.addSignature(from.getPrivateKey().sign(tx.getRawDataToSign(0)), 0);
+      tx.finalize();
+      return tx;
+   }
+
+   // a transaction without inputs paying 1 coin to each of <n> people in
+   // turn, whose outputs seed a UTXOPool
+   private Transaction funding(int n) {
+      Transaction tx = new Transaction();
+      for (int i = 0; i < n; i++)
+         tx.addOutput(1, people.get(i % nPeople).getPublicKey());
+      tx.finalize();
+      return tx;
+   }
+
+   private static UTXOPool poolOf(Transaction tx) {
+      UTXOPool utxoPool = new UTXOPool();
+      for (int i = 0; i < tx.numOutputs(); i++)
+         utxoPool.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+      return utxoPool;
+   }
+
+   public int test1() {
+      System.out.println("Connect a block large enough to be validated in parallel");
+
+      Transaction fund = funding(100);
+      UTXOPool utxoPool = poolOf(fund);
+
+      // independent spends, then a parent and its child
+      ArrayList<Transaction> txs = new ArrayList<Transaction>();
+      for (int i = 0; i < TxHandler.PARALLEL_MIN_TXS + 6; i++)
+         txs.add(spend(fund.getHash(), i, 1, people.get(i % nPeople), people.get((i + 1) % nPeople)));
+      int p = txs.size();
+      Transaction parent = spend(fund.getHash(), p, 1, people.get(p % nPeople), people.get(0));
+      Transaction child = spend(parent.getHash(), 0, 1, people.get(0), people.get(1));
+      txs.add(parent);
+      txs.add(child);
+
+      TxHandler parallel = new TxHandler(new UTXOPool(utxoPool));
+      boolean passes = parallel.connectTxs(txs);
+      // the same outcome as connecting them one at a time
+      TxHandler sequential = new TxHandler(new UTXOPool(utxoPool));
+      for (Transaction tx : txs)
+         passes = passes && sequential.connectTxs(Collections.singletonList(tx));
+      passes = passes && new HashSet<UTXO>(parallel.getUTXOPool().getAllUTXO())
+            .equals(new HashSet<UTXO>(sequential.getUTXOPool().getAllUTXO()));
+      passes = passes && parallel.getUTXOPool().contains(new UTXO(child.getHash(), 0));
+      passes = passes && !parallel.getUTXOPool().contains(new UTXO(parent.getHash(), 0));
+      passes = passes && parallel.getUTXOPool().size() == 100;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test2() {
+      System.out.println("Reject a large block with a child before its parent, or a double spend");
+
+      Transaction fund = funding(100);
+      UTXOPool utxoPool = poolOf(fund);
+
+      ArrayList<Transaction> txs = new ArrayList<Transaction>();
+      for (int i = 0; i < TxHandler.PARALLEL_MIN_TXS + 6; i++)
+         txs.add(spend(fund.getHash(), i, 1, people.get(i % nPeople), people.get((i + 1) % nPeople)));
+      int p = txs.size();
+      Transaction parent = spend(fund.getHash(), p, 1, people.get(p % nPeople), people.get(0));
+      Transaction child = spend(parent.getHash(), 0, 1, people.get(0), people.get(1));
+
+      List<Transaction> childFirst = new ArrayList<Transaction>(txs);
+      childFirst.add(child);
+      childFirst.add(parent);
+      boolean passes = !new TxHandler(new UTXOPool(utxoPool)).connectTxs(childFirst);
+
+      // output 5 spent again, to someone else, far down the block
+      List<Transaction> doubleSpend = new ArrayList<Transaction>(txs);
+      doubleSpend.add(spend(fund.getHash(), 5, 1, people.get(5), people.get(0)));
+      passes = passes && !new TxHandler(new UTXOPool(utxoPool)).connectTxs(doubleSpend);
+
+      // the same block without them is fine
+      passes = passes && new TxHandler(new UTXOPool(utxoPool)).connectTxs(txs);
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test3() {
+      System.out.println("Freeze a transaction and serialize, deserialize and thaw it back");
+
+      Transaction fund = funding(4);
+      Transaction tx = new Transaction();
+      tx.addInput(fund.getHash(), 0);
+      tx.addInput(fund.getHash(), 1);
+      tx.addInput(null, 2);
+      // a whole number of base units, and one that is not
+      tx.addOutput(1.5, people.get(2).getPublicKey());
+      tx.addOutput(1e-9, people.get(3).getPublicKey());
+      tx.addSignature(people.get(0).getPrivateKey().sign(tx.getRawDataToSign(0)), 0);
+      tx.finalize();
+
+      FrozenTransaction frozen = tx.freeze();
+      boolean passes = Arrays.equals(frozen.getHash(), tx.getHash()) && !frozen.isCoinbase();
+      passes = passes && Arrays.equals(frozen.getRawTx(), tx.getRawTx());
+      for (int i = 0; i < tx.numInputs(); i++) {
+         passes = passes && Arrays.equals(frozen.getRawDataToSign(i), tx.getRawDataToSign(i));
+         passes = passes && Arrays.equals(frozen.getSignature(i), tx.getInput(i).signature);
+      }
+      passes = passes && frozen.getPrevTxHash(2) == null && frozen.getSignature(1) == null;
+      passes = passes && frozen.getAmount(0) == Amount.toUnits(1.5) && frozen.getValue(1) == 1e-9;
+
+      // the thawed copy serializes to the same bytes, and deserializes
+      // to a transaction that freezes the same again
+      Transaction thawed = frozen.toTransaction();
+      passes = passes && Arrays.equals(thawed.serialize(), tx.serialize());
+      Transaction back = Transaction.deserialize(thawed.serialize());
+      passes = passes && Arrays.equals(back.freeze().getRawTx(), tx.getRawTx());
+      passes = passes && Arrays.equals(back.getHash(), tx.getHash()) && BlockChain.hashMatches(back);
+
+      Transaction coinbase = new Transaction(Block.COINBASE, people.get(1).getPublicKey());
+      FrozenTransaction frozenCoinbase = coinbase.freeze();
+      passes = passes && frozenCoinbase.isCoinbase() && frozenCoinbase.toTransaction().isCoinbase();
+      passes = passes && Arrays.equals(frozenCoinbase.toTransaction().serialize(), coinbase.serialize());
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test4() {
+      System.out.println("Keep frozen and admitted transactions from changing under their callers");
+
+      Transaction fund = funding(4);
+      Transaction tx = spend(fund.getHash(), 0, 1, people.get(0), people.get(1));
+      byte[] raw = tx.getRawTx();
+      FrozenTransaction frozen = tx.freeze();
+
+      // changing the transaction, or what the frozen one hands out
+      tx.getInput(0).signature[0]++;
+      tx.getOutput(0).value = 2;
+      tx.addOutput(3, people.get(2).getPublicKey());
+      frozen.getHash()[0]++;
+      frozen.getSignature(0)[0]++;
+      frozen.getPrevTxHash(0)[0]++;
+      frozen.getOutput(0).value = 4;
+      frozen.toTransaction().getOutput(0).value = 5;
+      boolean passes = Arrays.equals(frozen.getRawTx(), raw) && frozen.numOutputs() == 1;
+      passes = passes && frozen.getValue(0) == 1 && frozen.toTransaction().getOutput(0).value == 1;
+      passes = passes && BlockChain.hashMatches(frozen.toTransaction());
+
+      // the chain keeps its own copies of what it is given
+      Block genesisBlock = new Block(null, people.get(0).getPublicKey());
+      genesisBlock.finalize();
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      Transaction pooled = spend(genesisBlock.getCoinbase().getHash(), 0, Block.COINBASE, people.get(0), people.get(1));
+      blockChain.addTransaction(pooled);
+      pooled.getOutput(0).value = 1;
+      pooled.getInput(0).signature[0]++;
+      Transaction inPool = blockChain.getTransactionPool().getTransaction(pooled.getHash());
+      passes = passes && inPool != null && inPool.getOutput(0).value == Block.COINBASE;
+      passes = passes && BlockChain.hashMatches(inPool);
+
+      // ...of orphans
+      Transaction parent = spend(fund.getHash(), 1, 1, people.get(1), people.get(2));
+      Transaction orphan = spend(parent.getHash(), 0, 1, people.get(2), people.get(3));
+      OrphanTxPool orphans = new OrphanTxPool();
+      ArrayList<UTXO> missing = new ArrayList<UTXO>();
+      missing.add(new UTXO(parent.getHash(), 0));
+      orphans.addTransaction(orphan, missing);
+      orphan.getOutput(0).value = 7;
+      orphans.getTransactions().get(0).getOutput(0).value = 8;
+      ArrayList<Transaction> waiting = orphans.removeWaitingOn(new UTXO(parent.getHash(), 0));
+      passes = passes && waiting.size() == 1 && waiting.get(0).getOutput(0).value == 1;
+      passes = passes && BlockChain.hashMatches(waiting.get(0)) && orphans.size() == 0;
+
+      // ...and of the transactions of blocks
+      Transaction confirmed = spend(genesisBlock.getCoinbase().getHash(), 0, Block.COINBASE, people.get(0), people.get(1));
+      Block b1 = new Block(genesisBlock.getHash(), people.get(2).getPublicKey());
+      b1.addTransaction(confirmed);
+      b1.finalize();
+      passes = passes && blockChain.addBlock(b1);
+      confirmed.getOutput(0).value = 1;
+      confirmed.getOutput(0).address = people.get(3).getPublicKey();
+      passes = passes && b1.getTransaction(0) != confirmed && b1.getTransaction(0).getOutput(0).value == Block.COINBASE;
+      passes = passes && BlockChain.hashMatches(b1);
+      UTXOPool utxoPool = blockChain.getMaxHeightUTXOPool();
+      Transaction.Output out = utxoPool.getTxOutput(new UTXO(confirmed.getHash(), 0));
+      passes = passes && out != null && out.value == Block.COINBASE;
+      passes = passes && Address.same(out.address, people.get(1).getPublicKey());
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public static void main(String[] args) {
+      TestTransactionFeatures tester = new TestTransactionFeatures();
+
+      int total = 0;
+      int numTests = 4;
+
+      UtilCOS.printTotalNumTests(numTests);
+      System.out.println("######################\nParallel validation tests:\n######################\n");
+      total += tester.test1();
+      total += tester.test2();
+
+      System.out.println("######################\nFrozen transaction tests:\n######################\n");
+      total += tester.test3();
+      total += tester.test4();
+
+      System.out.println();
+      UtilCOS.printNumTestsPassed(total, numTests);
+   }
+}
@@ -0,0 +1,439 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+// Driver class for transaction admission and TransactionPool
+public class TestTransactionPool {
+
+   public int nPeople;
+   public ArrayList<RSAKeyPair> people;
+
+   public TestTransactionPool() {
+      this.nPeople = 8;
+
+      byte[] key = new byte[32];
+      for (int i = 0; i < 32; i++) {
+         key[i] = (byte) 3;
+      }
+
+      PRGen prGen = new PRGen(key);
+
+      people = new ArrayList<RSAKeyPair>();
+      for (int i = 0; i < nPeople; i++)
+         people.add(new RSAKeyPair(prGen, 265));
+   }
+
+   // a transaction moving output <index> of <prevHash>, owned by <from>,
+   // to <to> as a single output of <value>
+   private static Transaction spend(byte[] prevHash, int index, double value, RSAKeyPair from, RSAKeyPair to) {
+      Transaction tx = new Transaction();
+      tx.addInput(prevHash, index);
+      tx.addOutput(value, to.getPublicKey());
+      tx.addSignature(from.getPrivateKey().sign(tx.getRawDataToSign(0)), 0);
+      tx.finalize();
+      return tx;
+   }
+
+   // a transaction splitting the coinbase of <parent>, owned by <from>,
+   // into <n> outputs of <value> to <to>
+   private static Transaction split(Block parent, int n, double value, RSAKeyPair from, RSAKeyPair to) {
+      Transaction tx = new Transaction();
+      tx.addInput(parent.getCoinbase().getHash(), 0);
+      for (int i = 0; i < n; i++)
+         tx.addOutput(value, to.getPublicKey());
+      tx.addSignature(from.getPrivateKey().sign(tx.getRawDataToSign(0)), 0);
+      tx.finalize();
+      return tx;
+   }
+
+   private static Block block(Block parent, RSAKeyPair miner, Transaction... txs) {
+      Block block = new Block(parent.getHash(), miner.getPublicKey());
+      for (Transaction tx : txs)
+         block.addTransaction(tx);
+      block.finalize();
+      return block;
+   }
+
+   private static Block genesis(RSAKeyPair miner) {
+      Block genesisBlock = new Block(null, miner.getPublicKey());
+      genesisBlock.finalize();
+      return genesisBlock;
+   }
+
+   public int test1() {
+      System.out.println("Process a transaction before its parent");
+
+      Block genesisBlock = genesis(people.get(0));
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      BlockHandler blockHandler = new BlockHandler(blockChain);
+      TransactionPool txPool = blockChain.getTransactionPool();
+
+      Transaction parentTx = spend(genesisBlock.getCoinbase().getHash(), 0, 20, people.get(0), people.get(1));
+      Transaction childTx = spend(parentTx.getHash(), 0, 15, people.get(1), people.get(2));
+      blockHandler.processTx(childTx);
+      boolean passes = !txPool.contains(childTx.getHash());
+      // the same orphan again is neither pooled nor kept twice
+      blockHandler.processTx(childTx);
+      passes = passes && !txPool.contains(childTx.getHash());
+      blockHandler.processTx(parentTx);
+      passes = passes && txPool.contains(parentTx.getHash()) && txPool.contains(childTx.getHash());
+      passes = passes && txPool.getTransactions().size() == 2;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test2() {
+      System.out.println("Process transactions carrying the hash of another transaction");
+
+      Block genesisBlock = genesis(people.get(0));
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      BlockHandler blockHandler = new BlockHandler(blockChain);
+      TransactionPool txPool = blockChain.getTransactionPool();
+
+      Transaction real = spend(genesisBlock.getCoinbase().getHash(), 0, 20, people.get(0), people.get(1));
+      Transaction realChild = spend(real.getHash(), 0, 15, people.get(1), people.get(2));
+
+      // an orphan claiming an unknown output under the hash of real
+      byte[] unknown = new byte[32];
+      unknown[0] = 1;
+      Transaction squatter = spend(unknown, 0, 1, people.get(3), people.get(3));
+      squatter.setHash(real.getHash());
+      OrphanTxPool orphans = new OrphanTxPool();
+      ArrayList<UTXO> missing = new ArrayList<UTXO>();
+      missing.add(new UTXO(unknown, 0));
+      orphans.addTransaction(squatter, missing);
+      boolean passes = orphans.size() == 0;
+
+      blockHandler.processTx(squatter);
+      blockHandler.processTx(real);
+      passes = passes && txPool.contains(real.getHash());
+      passes = passes && txPool.getTransaction(real.getHash()).equals(real);
+
+      // a valid transaction under the hash of realChild
+      Transaction impostor = spend(real.getHash(), 0, 10, people.get(1), people.get(3));
+      impostor.setHash(realChild.getHash());
+      blockHandler.processTx(impostor);
+      passes = passes && !txPool.contains(realChild.getHash());
+      blockHandler.processTx(realChild);
+      passes = passes && txPool.contains(realChild.getHash()) && txPool.size() == 2;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test3() {
+      System.out.println("Evict the lowest paying transactions once the pool is full");
+
+      Block genesisBlock = genesis(people.get(0));
+      Transaction splitTx = split(genesisBlock, 5, Block.COINBASE / 5, people.get(0), people.get(1));
+      Block b1 = block(genesisBlock, people.get(1), splitTx);
+
+      // room for two single input, single output transactions
+      long maxBytes = 2 * TransactionPool.estimateSize(spend(splitTx.getHash(), 0, 1, people.get(1), people.get(2))) + 100;
+      BlockChain blockChain = new BlockChain(genesisBlock, maxBytes);
+      BlockHandler blockHandler = new BlockHandler(blockChain);
+      TransactionPool txPool = blockChain.getTransactionPool();
+      boolean passes = blockHandler.processBlock(b1);
+
+      Transaction fee1 = spend(splitTx.getHash(), 0, 4, people.get(1), people.get(2));
+      Transaction fee3 = spend(splitTx.getHash(), 1, 2, people.get(1), people.get(2));
+      Transaction fee2 = spend(splitTx.getHash(), 2, 3, people.get(1), people.get(2));
+      Transaction tooCheap = spend(splitTx.getHash(), 3, 4.5, people.get(1), people.get(2));
+      blockHandler.processTx(fee1);
+      blockHandler.processTx(fee3);
+      passes = passes && txPool.size() == 2 && txPool.getMinFeeRate() == 0;
+      blockHandler.processTx(fee2);
+      passes = passes && txPool.size() == 2 && !txPool.contains(fee1.getHash());
+      passes = passes && txPool.contains(fee2.getHash()) && txPool.contains(fee3.getHash());
+      passes = passes && txPool.getMinFeeRate() > 0;
+      blockHandler.processTx(tooCheap);
+      passes = passes && !txPool.contains(tooCheap.getHash());
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test4() {
+      System.out.println("Process a chain of transactions longer than the package limit");
+
+      Block genesisBlock = genesis(people.get(0));
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      BlockHandler blockHandler = new BlockHandler(blockChain);
+      TransactionPool txPool = blockChain.getTransactionPool();
+
+      // each spends the one before; only the first MAX_PACKAGE_COUNT fit
+      ArrayList<Transaction> chain = new ArrayList<Transaction>();
+      Transaction prev = spend(genesisBlock.getCoinbase().getHash(), 0, Block.COINBASE, people.get(0), people.get(1));
+      chain.add(prev);
+      for (int i = 1; i < 2 * TransactionPool.MAX_PACKAGE_COUNT; i++) {
+         prev = spend(prev.getHash(), 0, Block.COINBASE, people.get((i - 1) % 2 + 1), people.get(i % 2 + 1));
+         chain.add(prev);
+      }
+      for (Transaction tx : chain)
+         blockHandler.processTx(tx);
+      boolean passes = txPool.size() == TransactionPool.MAX_PACKAGE_COUNT;
+      for (int i = 0; i < chain.size(); i++)
+         passes = passes && txPool.contains(chain.get(i).getHash()) == (i < TransactionPool.MAX_PACKAGE_COUNT);
+
+      // the tail goes in once the head is confirmed
+      Block b1 = block(genesisBlock, people.get(3), chain.get(0));
+      passes = passes && blockHandler.processBlock(b1);
+      blockHandler.processTx(chain.get(TransactionPool.MAX_PACKAGE_COUNT));
+      passes = passes && txPool.contains(chain.get(TransactionPool.MAX_PACKAGE_COUNT).getHash());
+      passes = passes && txPool.size() == TransactionPool.MAX_PACKAGE_COUNT;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test5() {
+      System.out.println("Process more children of one pool transaction than the package limit");
+
+      Block genesisBlock = genesis(people.get(0));
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      BlockHandler blockHandler = new BlockHandler(blockChain);
+      TransactionPool txPool = blockChain.getTransactionPool();
+
+      int n = TransactionPool.MAX_PACKAGE_COUNT + 5;
+      Transaction parent = split(genesisBlock, n, 0.5, people.get(0), people.get(1));
+      blockHandler.processTx(parent);
+      ArrayList<Transaction> children = new ArrayList<Transaction>();
+      for (int i = 0; i < n; i++) {
+         Transaction child = spend(parent.getHash(), i, 0.5, people.get(1), people.get(2));
+         children.add(child);
+         blockHandler.processTx(child);
+      }
+      // the parent and MAX_PACKAGE_COUNT - 1 children make a full package
+      boolean passes = txPool.size() == TransactionPool.MAX_PACKAGE_COUNT;
+      for (int i = 0; i < n; i++)
+         passes = passes && txPool.contains(children.get(i).getHash()) == (i < TransactionPool.MAX_PACKAGE_COUNT - 1);
+
+      // removing a child frees a place in the package
+      txPool.removeTransaction(children.get(0).getHash());
+      blockHandler.processTx(children.get(n - 1));
+      passes = passes && txPool.contains(children.get(n - 1).getHash());
+      passes = passes && txPool.size() == TransactionPool.MAX_PACKAGE_COUNT;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test6() {
+      System.out.println("Keep the transaction pool off the heap");
+
+      Block genesisBlock = genesis(people.get(0));
+      Transaction splitTx = split(genesisBlock, 4, Block.COINBASE / 4, people.get(0), people.get(1));
+      Block b1 = block(genesisBlock, people.get(1), splitTx);
+      BlockChain blockChain = new BlockChain(genesisBlock, TransactionPool.DEFAULT_MAX_BYTES, true);
+      BlockHandler blockHandler = new BlockHandler(blockChain);
+      TransactionPool txPool = blockChain.getTransactionPool();
+      boolean passes = txPool.isOffHeap() && blockHandler.processBlock(b1);
+
+      ArrayList<Transaction> txs = new ArrayList<Transaction>();
+      for (int i = 0; i < 4; i++) {
+         txs.add(spend(splitTx.getHash(), i, 6, people.get(1), people.get(2)));
+         blockHandler.processTx(txs.get(i));
+      }
+      passes = passes && txPool.getTransactions().equals(txs);
+      passes = passes && txPool.getOutput(new UTXO(txs.get(2).getHash(), 0)).value == 6;
+
+      Block created = blockHandler.createBlock(people.get(3).getPublicKey());
+      passes = passes && created != null && created.getTransactions().size() == 4 && txPool.size() == 0;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test7() {
+      System.out.println("Pool a transaction too large for the off-heap arena, then replace it");
+
+      Block genesisBlock = genesis(people.get(0));
+      BlockChain blockChain = new BlockChain(genesisBlock, TransactionPool.DEFAULT_MAX_BYTES, true);
+      BlockHandler blockHandler = new BlockHandler(blockChain);
+      TransactionPool txPool = blockChain.getTransactionPool();
+
+      int n = 20000;
+      Transaction big = split(genesisBlock, n, 0.001, people.get(0), people.get(1));
+      boolean passes = big.serialize().length > TxArena.MAX_RECORD_SIZE;
+      blockHandler.processTx(big);
+      passes = passes && txPool.contains(big.getHash()) && txPool.getTransaction(big.getHash()).equals(big);
+      passes = passes && txPool.getOutput(new UTXO(big.getHash(), n - 1)).value == 0.001;
+
+      Transaction child = spend(big.getHash(), 7, 0.001, people.get(1), people.get(2));
+      blockHandler.processTx(child);
+      passes = passes && txPool.contains(child.getHash());
+
+      // a conflicting spend paying too little leaves both in place
+      Transaction cheap = spend(genesisBlock.getCoinbase().getHash(), 0, 24, people.get(0), people.get(2));
+      blockHandler.processTx(cheap);
+      passes = passes && !txPool.contains(cheap.getHash()) && txPool.size() == 2;
+
+      // one paying enough replaces both
+      Transaction rich = spend(genesisBlock.getCoinbase().getHash(), 0, 1, people.get(0), people.get(2));
+      blockHandler.processTx(rich);
+      passes = passes && txPool.contains(rich.getHash()) && txPool.size() == 1;
+      passes = passes && !txPool.isSpent(new UTXO(big.getHash(), 7));
+      passes = passes && txPool.getSpender(new UTXO(genesisBlock.getCoinbase().getHash(), 0)).equals(rich);
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test8() throws IOException {
+      System.out.println("Dump the transaction pool and load it into another node");
+
+      File file = File.createTempFile("txpool", ".dump");
+      try {
+         Block genesisBlock = genesis(people.get(0));
+         Transaction splitTx = split(genesisBlock, 5, Block.COINBASE / 5, people.get(0), people.get(1));
+         Block b1 = block(genesisBlock, people.get(1), splitTx);
+         BlockChain blockChain = new BlockChain(genesisBlock);
+         boolean passes = blockChain.addBlock(b1);
+         for (int i = 0; i < 3; i++)
+            blockChain.addTransaction(spend(splitTx.getHash(), i, 4, people.get(1), people.get(2)));
+         blockChain.dumpTransactionPool(file);
+
+         BlockChain restored = new BlockChain(genesisBlock);
+         passes = passes && restored.addBlock(b1);
+         passes = passes && restored.loadTransactionPool(file) == 3;
+         passes = passes && restored.getTransactionPool().getTransactions()
+               .equals(blockChain.getTransactionPool().getTransactions());
+
+         // a damaged dump is refused as a whole
+         RandomAccessFile raf = new RandomAccessFile(file, "rw");
+         try {
+            raf.seek(raf.length() / 2);
+            int b = raf.read();
+            raf.seek(raf.length() / 2);
+            raf.write(b ^ 1);
+         } finally {
+            raf.close();
+         }
+         BlockChain damaged = new BlockChain(genesisBlock);
+         damaged.addBlock(b1);
+         try {
+            damaged.loadTransactionPool(file);
+            passes = false;
+         } catch (IOException x) {
+            passes = passes && damaged.getTransactionPool().size() == 0;
+         }
+         return UtilCOS.printPassFail(passes);
+      } finally {
+         file.delete();
+      }
+   }
+
+   public int test9() {
+      System.out.println("Replace a pool transaction by one paying a higher fee");
+
+      Block genesisBlock = genesis(people.get(0));
+      BlockChain blockChain = new BlockChain(genesisBlock);
+      BlockHandler blockHandler = new BlockHandler(blockChain);
+      TransactionPool txPool = blockChain.getTransactionPool();
+
+      byte[] coinbase = genesisBlock.getCoinbase().getHash();
+      Transaction original = spend(coinbase, 0, 24, people.get(0), people.get(1));
+      Transaction child = spend(original.getHash(), 0, 23, people.get(1), people.get(2));
+      Transaction better = spend(coinbase, 0, 20, people.get(0), people.get(3));
+      Transaction worse = spend(coinbase, 0, 22, people.get(0), people.get(2));
+
+      blockHandler.processTx(original);
+      blockHandler.processTx(child);
+      blockHandler.processTx(better);
+      boolean passes = txPool.contains(better.getHash());
+      passes = passes && !txPool.contains(original.getHash()) && !txPool.contains(child.getHash());
+      blockHandler.processTx(worse);
+      passes = passes && !txPool.contains(worse.getHash()) && txPool.contains(better.getHash());
+      passes = passes && txPool.size() == 1;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test10() {
+      System.out.println("Put the replaced transactions back when the replacement does not fit");
+
+      Block genesisBlock = genesis(people.get(0));
+      byte[] coinbase = genesisBlock.getCoinbase().getHash();
+      Transaction original = spend(coinbase, 0, 24, people.get(0), people.get(1));
+      Transaction child = spend(original.getHash(), 0, 23, people.get(1), people.get(2));
+
+      // room for the two, but not for a replacement with many outputs
+      long maxBytes = TransactionPool.estimateSize(original) + TransactionPool.estimateSize(child) + 100;
+      BlockChain blockChain = new BlockChain(genesisBlock, maxBytes);
+      BlockHandler blockHandler = new BlockHandler(blockChain);
+      TransactionPool txPool = blockChain.getTransactionPool();
+      blockHandler.processTx(original);
+      blockHandler.processTx(child);
+
+      Transaction wide = new Transaction();
+      wide.addInput(coinbase, 0);
+      for (int i = 0; i < 10; i++)
+         wide.addOutput(2, people.get(3).getPublicKey());
+      wide.addSignature(people.get(0).getPrivateKey().sign(wide.getRawDataToSign(0)), 0);
+      wide.finalize();
+      boolean passes = txPool.isReplacementAllowed(wide, Amount.toUnits(5));
+      passes = passes && TransactionPool.estimateSize(wide) > maxBytes;
+
+      blockHandler.processTx(wide);
+      passes = passes && !txPool.contains(wide.getHash()) && txPool.size() == 2;
+      passes = passes && txPool.getTransactions().get(0).equals(original)
+            && txPool.getTransactions().get(1).equals(child);
+      passes = passes && txPool.getMinFeeRate() == 0;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test11() {
+      System.out.println("Keep a view of an off-heap pool intact while its slots are reused");
+
+      Block genesisBlock = genesis(people.get(0));
+      Transaction splitTx = split(genesisBlock, 4, Block.COINBASE / 4, people.get(0), people.get(1));
+      Block b1 = block(genesisBlock, people.get(1), splitTx);
+      BlockChain blockChain = new BlockChain(genesisBlock, TransactionPool.DEFAULT_MAX_BYTES, true);
+      BlockHandler blockHandler = new BlockHandler(blockChain);
+      TransactionPool txPool = blockChain.getTransactionPool();
+      boolean passes = blockHandler.processBlock(b1);
+
+      ArrayList<Transaction> txs = new ArrayList<Transaction>();
+      for (int i = 0; i < 4; i++) {
+         txs.add(spend(splitTx.getHash(), i, 6, people.get(1), people.get(2)));
+         blockHandler.processTx(txs.get(i));
+      }
+
+      TransactionPool.View view = txPool.getView();
+      txPool.removeTransaction(txs.get(0).getHash());
+      Transaction next = spend(txs.get(1).getHash(), 0, 5, people.get(2), people.get(3));
+      blockHandler.processTx(next);
+      passes = passes && view.size() == 4 && view.getTransactions().equals(txs);
+      passes = passes && view.getOutput(new UTXO(txs.get(0).getHash(), 0)).value == 6;
+      passes = passes && txPool.getView().contains(next.getHash()) && !txPool.getView().contains(txs.get(0).getHash());
+
+      // and once the pool is emptied by a block
+      Block created = blockHandler.createBlock(people.get(3).getPublicKey());
+      passes = passes && created != null && txPool.size() == 0;
+      passes = passes && view.getTransactions().equals(txs) && txPool.getView().size() == 0;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public static void main(String[] args) throws IOException {
+      TestTransactionPool tester = new TestTransactionPool();
+
+      int total = 0;
+      int numTests = 11;
+
+      UtilCOS.printTotalNumTests(numTests);
+      System.out.println("######################\nAdmission tests:\n######################\n");
+      total += tester.test1();
+      total += tester.test2();
+
+      System.out.println("######################\nTransaction pool tests:\n######################\n");
+      total += tester.test3();
+      total += tester.test4();
+      total += tester.test5();
+      total += tester.test6();
+      total += tester.test7();
+      total += tester.test8();
+      total += tester.test9();
+      total += tester.test10();
+      total += tester.test11();
+
+      System.out.println();
+      UtilCOS.printNumTestsPassed(total, numTests);
+   }
+}
@@ -0,0 +1,148 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// Driver class for UTXOPool and ConcurrentUTXOPool
+public class TestUTXOPool {
+
+   public int nPeople;
+   public ArrayList<RSAKeyPair> people;
+
+   public TestUTXOPool() {
+      this.nPeople = 4;
+
+      byte[] key = new byte[32];
+      for (int i = 0; i < 32; i++) {
+         key[i] = (byte) 5;
+      }
+
+      PRGen prGen = new PRGen(key);
+
+      people = new ArrayList<RSAKeyPair>();
+      for (int i = 0; i < nPeople; i++)
+         people.add(new RSAKeyPair(prGen, 265));
+   }
+
+   // a transaction without inputs whose output i pays values[i] coins to
+   // one of the people in turn
+   private Transaction funding(double... values) {
+      Transaction tx = new Transaction();
+      for (int i = 0; i < values.length; i++)
+         tx.addOutput(values[i], people.get(i % nPeople).getPublicKey());
+      tx.finalize();
+      return tx;
+   }
+
+   private static double[] ones(int n) {
+      double[] values = new double[n];
+      for (int i = 0; i < n; i++)
+         values[i] = 1;
+      return values;
+   }
+
+   public int test1() throws InterruptedException {
+      System.out.println("Spend the same outputs of a concurrent view from several threads at once");
+
+      // about half the outputs in the base pool, the rest added to the
+      // view; one output more gives the second a hash of its own
+      Transaction inBase = funding(ones(1000));
+      Transaction inView = funding(ones(1001));
+      UTXOPool base = new UTXOPool();
+      for (int i = 0; i < inBase.numOutputs(); i++)
+         base.addUTXO(new UTXO(inBase.getHash(), i), inBase.getOutput(i));
+      final ConcurrentUTXOPool view = new ConcurrentUTXOPool(base);
+      final ArrayList<UTXO> all = new ArrayList<UTXO>(base.getAllUTXO());
+      for (int i = 0; i < inView.numOutputs(); i++) {
+         UTXO ut = new UTXO(inView.getHash(), i);
+         view.addUTXO(ut, inView.getOutput(i));
+         all.add(ut);
+      }
+
+      // each thread tries every output, in its own order
+      final AtomicIntegerArray wins = new AtomicIntegerArray(all.size());
+      ArrayList<Thread> threads = new ArrayList<Thread>();
+      for (int t = 0; t < 8; t++) {
+         final ArrayList<Integer> order = new ArrayList<Integer>();
+         for (int i = 0; i < all.size(); i++)
+            order.add(i);
+         Collections.rotate(order, t * 251);
+         if (t % 2 == 1)
+            Collections.reverse(order);
+         threads.add(new Thread(() -> {
+            for (int i : order)
+               if (view.spendIfPresent(all.get(i)) != null)
+                  wins.incrementAndGet(i);
+         }));
+      }
+      for (Thread t : threads)
+         t.start();
+      for (Thread t : threads)
+         t.join();
+
+      boolean passes = true;
+      for (int i = 0; i < all.size(); i++)
+         passes = passes && wins.get(i) == 1;
+      passes = passes && view.size() == 0 && view.getAllUTXO().isEmpty();
+      passes = passes && view.spendIfPresent(all.get(0)) == null;
+      // the base pool is left alone
+      passes = passes && base.size() == inBase.numOutputs();
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public int test2() {
+      System.out.println("Sum, count and bucket the values of a layered pool");
+
+      // values 0.5, 1.0, ..., 100.0 in the base; the layer drops the first
+      // ten and adds 0.25 and 1000
+      double[] values = new double[200];
+      for (int i = 0; i < values.length; i++)
+         values[i] = 0.5 * (i + 1);
+      Transaction fund = funding(values);
+      Transaction more = funding(0.25, 1000);
+      UTXOPool base = new UTXOPool();
+      for (int i = 0; i < fund.numOutputs(); i++)
+         base.addUTXO(new UTXO(fund.getHash(), i), fund.getOutput(i));
+      UTXOPool layer = UTXOPool.layer(base);
+      for (int i = 0; i < 10; i++)
+         layer.removeUTXO(new UTXO(fund.getHash(), i));
+      for (int i = 0; i < more.numOutputs(); i++)
+         layer.addUTXO(new UTXO(more.getHash(), i), more.getOutput(i));
+
+      // 0.5 * (11 + ... + 200) + 0.25 + 1000
+      long expected = Amount.toUnits(0.5 * (200 * 201 / 2 - 55) + 0.25 + 1000);
+      boolean passes = layer.getTotalAmount() == expected;
+      passes = passes && base.getTotalAmount() == Amount.toUnits(0.5 * (200 * 201 / 2));
+      passes = passes && layer.count(op -> op.value >= 50) == 102;
+      passes = passes && layer.count(op -> Address.same(op.address, people.get(0).getPublicKey())) == 48;
+
+      // below 10, [10, 50), [50, 100) and from 100 up
+      long[] bounds = { Amount.toUnits(10), Amount.toUnits(50), Amount.toUnits(100) };
+      long[] hist = layer.getValueHistogram(bounds);
+      passes = passes && hist.length == 4;
+      passes = passes && hist[0] == 10 && hist[1] == 80 && hist[2] == 100 && hist[3] == 2;
+
+      UTXOPool empty = new UTXOPool();
+      passes = passes && empty.getTotalAmount() == 0 && empty.count(op -> true) == 0;
+      passes = passes && empty.getValueHistogram(bounds)[0] == 0;
+
+      return UtilCOS.printPassFail(passes);
+   }
+
+   public static void main(String[] args) throws InterruptedException {
+      TestUTXOPool tester = new TestUTXOPool();
+
+      int total = 0;
+      int numTests = 2;
+
+      UtilCOS.printTotalNumTests(numTests);
+      System.out.println("######################\nConcurrency tests:\n######################\n");
+      total += tester.test1();
+
+      System.out.println("######################\nAggregate tests:\n######################\n");
+      total += tester.test2();
+
+      System.out.println();
+      UtilCOS.printNumTestsPassed(total, numTests);
+   }
+}
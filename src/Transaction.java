@@ -1,3 +1,4 @@
+import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -7,7 +8,9 @@ import java.security.NoSuchAlgorithmException;
 public class Transaction {
 
 //---------------Subclasses-----------------------------------
-   public class Input {
+   // Input and Output do not refer back to their transaction; each keeps
+   // a constructor taking one for code compiled against the inner classes
+   public static class Input {
       public byte[] prevTxHash;   // hash of the Transaction whose output is being used
       public int outputIndex;     // used output's index in the previous transaction 
       public byte[] signature;    // the signature produced to check validity
@@ -19,6 +22,16 @@ public class Transaction {
             prevTxHash = Arrays.copyOf(prevHash, prevHash.length);
          outputIndex = index;
       }
+
+      public Input(Transaction tx, byte[] prevHash, int index) {
+         this(prevHash, index);
+      }
+
+      // Creates a copy of <in>
+      public Input(Input in) {
+         this(in.prevTxHash, in.outputIndex);
+         addSignature(in.signature);
+      }
       
       public void addSignature(byte[] sig) {
          if (sig == null)
@@ -63,14 +76,32 @@ public class Transaction {
        }
    }
 
-   public class Output {
-      public double value;        // value in bitcoins of the output
+   public static class Output {
+      // value in bitcoins of the output; it is signed and hashed as a
+      // double, so sums over it go through Amount
+      public double value;
       public RSAKey address;      // the address or public key of the recipient
 
       public Output(double v, RSAKey addr) {
          value = v;
          address = addr;
       }
+
+      public Output(Transaction tx, double v, RSAKey addr) {
+         this(v, addr);
+      }
+
+      // Creates a copy of <op>
+      public Output(Output op) {
+         this(op.value, op.address);
+      }
+
+      // Returns value in base units. Throws ArithmeticException if value is
+      // not a whole number of base units (see Amount.toUnits).
+      public long getAmount() {
+         return Amount.toUnits(value);
+      }
+
       
       public boolean equals(Object other) {
           if (other == null) {
@@ -84,11 +115,7 @@ public class Transaction {
 
           if (value != op.value)
              return false;
-          if (!address.getExponent().equals(op.address.getExponent()))
-             return false;
-          if (!address.getModulus().equals(op.address.getModulus()))
-             return false;
-          return true;
+          return Address.same(address, op.address);
        }
 
        public int hashCode() {
@@ -114,13 +141,26 @@ public class Transaction {
       coinbase = false;
    }
 
+   // Creates a copy of <tx> that shares no mutable state with it
    public Transaction(Transaction tx) {
       hash = tx.hash.clone();
-      inputs = new ArrayList<Input>(tx.inputs);
-      outputs = new ArrayList<Output>(tx.outputs);
+      inputs = new ArrayList<Input>(tx.inputs.size());
+      for (Input in : tx.inputs)
+         inputs.add(new Input(in));
+      outputs = new ArrayList<Output>(tx.outputs.size());
+      for (Output op : tx.outputs)
+         outputs.add(new Output(op));
       coinbase = false;
    }
 
+   // an empty transaction with the given flag and hash, for FrozenTransaction
+   static Transaction thaw(boolean coinbase, byte[] hash) {
+      Transaction tx = new Transaction();
+      tx.coinbase = coinbase;
+      tx.hash = hash;
+      return tx;
+   }
+
    // create a coinbase transaction of value coin
    // also calls finalize on it
    public Transaction(double coin, RSAKey address) {
@@ -145,6 +185,11 @@ public class Transaction {
       outputs.add(op);
    }
 
+   // Adds an output paying <amount> base units (see Amount)
+   public void addOutputAmount(long amount, RSAKey address) {
+      addOutput(Amount.toCoins(amount), address);
+   }
+
    public void removeInput(int index) {
       inputs.remove(index);
    }
@@ -179,8 +224,8 @@ public class Transaction {
          ByteBuffer bo = ByteBuffer.allocate(Double.SIZE/8);
          bo.putDouble(op.value);
          byte[] value = bo.array();
-         byte[] addressExponent = op.address.getExponent().toByteArray();
-         byte[] addressModulus = op.address.getModulus().toByteArray();
+         byte[] addressExponent = Address.exponentBytes(op.address);
+         byte[] addressModulus = Address.modulusBytes(op.address);
          for (int i = 0; i < value.length; i++)
             sigData.add(value[i]);
          for (int i = 0; i < addressExponent.length; i++)
@@ -220,8 +265,8 @@ public class Transaction {
          ByteBuffer b = ByteBuffer.allocate(Double.SIZE/8);
          b.putDouble(op.value);
          byte[] value = b.array();
-         byte[] addressExponent = op.address.getExponent().toByteArray();
-         byte[] addressModulus = op.address.getModulus().toByteArray();
+         byte[] addressExponent = Address.exponentBytes(op.address);
+         byte[] addressModulus = Address.modulusBytes(op.address);
          for (int i = 0; i < value.length; i++)
             rawTx.add(value[i]);
          for (int i = 0; i < addressExponent.length; i++)
@@ -236,6 +281,83 @@ public class Transaction {
       return tx;
    }
 
+   // Compact binary encoding of the whole transaction, including its hash,
+   // signatures and coinbase flag; the inverse of deserialize
+   public byte[] serialize() {
+      int len = 1 + 4 + lengthOf(hash) + 4 + 4;
+      for (Input in : inputs)
+         len += 4 + lengthOf(in.prevTxHash) + 4 + 4 + lengthOf(in.signature);
+      ArrayList<byte[]> keys = new ArrayList<byte[]>();
+      for (Output op : outputs) {
+         byte[] exponent = Address.exponentBytes(op.address);
+         byte[] modulus = Address.modulusBytes(op.address);
+         keys.add(exponent);
+         keys.add(modulus);
+         len += Double.SIZE/8 + 4 + exponent.length + 4 + modulus.length;
+      }
+      ByteBuffer b = ByteBuffer.allocate(len);
+      b.put((byte) (coinbase ? 1 : 0));
+      putBytes(b, hash);
+      b.putInt(inputs.size());
+      for (Input in : inputs) {
+         putBytes(b, in.prevTxHash);
+         b.putInt(in.outputIndex);
+         putBytes(b, in.signature);
+      }
+      b.putInt(outputs.size());
+      for (int i = 0; i < outputs.size(); i++) {
+         b.putDouble(outputs.get(i).value);
+         putBytes(b, keys.get(2*i));
+         putBytes(b, keys.get(2*i + 1));
+      }
+      return b.array();
+   }
+
+   // Rebuilds a transaction from the output of serialize
+   public static Transaction deserialize(byte[] data) {
+      ByteBuffer b = ByteBuffer.wrap(data);
+      Transaction tx = new Transaction();
+      tx.coinbase = b.get() == 1;
+      tx.hash = getBytes(b);
+      int nInputs = b.getInt();
+      for (int i = 0; i < nInputs; i++) {
+         Input in = new Input(getBytes(b), 0);
+         in.outputIndex = b.getInt();
+         in.signature = getBytes(b);
+         tx.inputs.add(in);
+      }
+      int nOutputs = b.getInt();
+      for (int i = 0; i < nOutputs; i++) {
+         double value = b.getDouble();
+         BigInteger exponent = new BigInteger(getBytes(b));
+         tx.addOutput(value, new RSAKey(exponent, new BigInteger(getBytes(b))));
+      }
+      return tx;
+   }
+
+   private static int lengthOf(byte[] a) {
+      return a == null ? 0 : a.length;
+   }
+
+   // length-prefixed byte array; -1 encodes null
+   private static void putBytes(ByteBuffer b, byte[] a) {
+      if (a == null) {
+         b.putInt(-1);
+      } else {
+         b.putInt(a.length);
+         b.put(a);
+      }
+   }
+
+   private static byte[] getBytes(ByteBuffer b) {
+      int len = b.getInt();
+      if (len < 0)
+         return null;
+      byte[] a = new byte[len];
+      b.get(a);
+      return a;
+   }
+
    public void finalize() {
       try {
          MessageDigest md = MessageDigest.getInstance("SHA-256");
@@ -246,6 +368,13 @@ public class Transaction {
       }
    }
 
+   /* Returns the immutable form of this transaction as it is now, to keep
+    * and share once it is finalized (see FrozenTransaction)
+    */
+   public FrozenTransaction freeze() {
+      return new FrozenTransaction(this);
+   }
+
    public void setHash(byte[] h) {
       hash = h;
    }
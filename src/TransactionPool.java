@@ -1,37 +1,903 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.TreeSet;
 
 public class TransactionPool {
+   public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+   // added on top of the fee rate of an evicted package when raising the
+   // minimum admission fee rate, in coins per byte
+   public static final double INCREMENTAL_FEE_RATE = 1e-8;
+   // package limits: a pooled transaction together with its pool ancestors,
+   // or with its pool descendants, is at most this many transactions of at
+   // most this many estimated bytes. They bound every walk over a package.
+   public static final int MAX_PACKAGE_COUNT = 25;
+   public static final long MAX_PACKAGE_BYTES = 8L * 1024 * 1024;
 
-   private HashMap<ByteArrayWrapper, Transaction> H;
+   // dump file header
+   private static final int DUMP_MAGIC = 0x4d504f4c;
+   private static final int DUMP_VERSION = 1;
+
+   // approximate heap cost of the pieces of a pooled transaction, in bytes
+   private static final int TX_OVERHEAD = 200;
+   private static final int INPUT_OVERHEAD = 160;
+   private static final int OUTPUT_OVERHEAD = 150;
+   private static final int BIGINTEGER_OVERHEAD = 56;
+
+   /* a pooled transaction with the bookkeeping needed for eviction. In
+    * off-heap mode tx is null and the serialized transaction sits in the
+    * arena under handle, unless it is too large for a slot (see
+    * TxArena.MAX_RECORD_SIZE) and stays on the heap; the entry alone is
+    * enough to unlink it. descFee,
+    * descSize and descCount cover the entry and all its pool descendants,
+    * the package evicting it takes along. record is set once views may
+    * refer to it.
+    */
+   private static class Entry {
+      public final ByteArrayWrapper hash;
+      public final FrozenTransaction tx;
+      public final long handle;
+      public final UTXO[] spends;
+      public final int numOutputs;
+      // in base units, see Amount
+      public final long fee;
+      public final int size;
+      public final long seq;
+      // changed only while the entry is out of byScore (see adjust)
+      public long descFee;
+      public long descSize;
+      public int descCount;
+      public Record record;
+
+      public Entry(ByteArrayWrapper hash, FrozenTransaction tx, long handle, UTXO[] spends, int numOutputs,
+                   long fee, int size, long seq) {
+         this.hash = hash;
+         this.tx = tx;
+         this.handle = handle;
+         this.spends = spends;
+         this.numOutputs = numOutputs;
+         this.fee = fee;
+         this.size = size;
+         this.seq = seq;
+         descFee = fee;
+         descSize = size;
+         descCount = 1;
+      }
+
+      // coins per byte
+      public double feeRate() {
+         return Amount.toCoins(fee) / size;
+      }
+
+      /* the rate eviction goes by: the higher of the entry's own fee rate
+       * and that of its descendant package, so a parent that a well-paying
+       * child pays for ranks with the child, while a child paying less than
+       * its parent is evicted on its own first
+       */
+      public double score() {
+         return Math.max(feeRate(), Amount.toCoins(descFee) / descSize);
+      }
+   }
+
+   // admission order
+   private static final Comparator<Entry> BY_SEQ = new Comparator<Entry>() {
+      public int compare(Entry a, Entry b) {
+         return Long.compare(a.seq, b.seq);
+      }
+   };
+
+   // lowest score first; among equal scores the newest goes first
+   private static final Comparator<Entry> BY_SCORE = new Comparator<Entry>() {
+      public int compare(Entry a, Entry b) {
+         int c = Double.compare(a.score(), b.score());
+         if (c != 0)
+            return c;
+         return Long.compare(b.seq, a.seq);
+      }
+   };
+
+   /* a pooled transaction as views hold it: the frozen transaction on the
+    * heap, or its slot in the arena off-heap, so taking a view never decodes
+    * or copies anything. Before the pool frees a slot a view may still read,
+    * it moves the bytes into the record (see release); the record's lock
+    * keeps a read from racing that.
+    */
+   private static final class Record {
+      private final FrozenTransaction tx;
+      private final TxArena arena;
+      private final long handle;
+      private byte[] raw;
+
+      public Record(FrozenTransaction tx, TxArena arena, long handle) {
+         this.tx = tx;
+         this.arena = arena;
+         this.handle = handle;
+      }
+
+      // a copy of the transaction
+      public Transaction get() {
+         if (tx != null)
+            return tx.toTransaction();
+         return Transaction.deserialize(bytes());
+      }
+
+      public Transaction.Output getOutput(int index) {
+         if (tx != null)
+            return index < tx.numOutputs() ? tx.getOutput(index) : null;
+         Transaction t = get();
+         return index < t.numOutputs() ? t.getOutput(index) : null;
+      }
+
+      // copies the record out of the arena; the pool frees the slot after
+      public synchronized void detach() {
+         if (tx == null && raw == null)
+            raw = arena.load(handle);
+      }
+
+      private synchronized byte[] bytes() {
+         return raw != null ? raw : arena.load(handle);
+      }
+   }
+
+   /* An immutable view of the pool's transactions at one point in time (see
+    * getView). Like a layered UTXOPool, a view records what changed since
+    * the previous one and reads through to it for the rest, and it is
+    * flattened once the layers get too deep. It shares the pool's records,
+    * so an off-heap pool is not copied onto the heap, and hands out copies.
+    */
+   public static class View {
+      private static final int MAX_LAYERS = 16;
+
+      private final View base;
+      // transactions added since base, in admission order
+      private final LinkedHashMap<ByteArrayWrapper, Record> added;
+      // transactions of base that are no longer in the pool
+      private final HashSet<ByteArrayWrapper> removed;
+      private final int depth;
+      private final int size;
+
+      private View(View base, LinkedHashMap<ByteArrayWrapper, Record> added,
+            HashSet<ByteArrayWrapper> removed) {
+         this.base = base;
+         this.added = added;
+         this.removed = removed;
+         depth = base == null ? 0 : base.depth + 1;
+         int n = added.size();
+         if (base != null) {
+            n += base.size;
+            for (ByteArrayWrapper hash : removed)
+               if (base.contains(hash))
+                  n--;
+         }
+         size = n;
+      }
+
+      // a view of <T>, in order, not depending on any other view
+      private static View of(LinkedHashMap<ByteArrayWrapper, Record> T) {
+         return new View(null, T, new HashSet<ByteArrayWrapper>());
+      }
+
+      public Transaction getTransaction(byte[] txHash) {
+         Record r = get(new ByteArrayWrapper(txHash));
+         return r == null ? null : r.get();
+      }
+
+      public boolean contains(byte[] txHash) {
+         return contains(new ByteArrayWrapper(txHash));
+      }
+
+      // Returns the output <ut> if it was created by a transaction in the
+      // view, else null
+      public Transaction.Output getOutput(UTXO ut) {
+         Record r = get(new ByteArrayWrapper(ut.getTxHash()));
+         if (r == null || ut.getIndex() < 0)
+            return null;
+         return r.getOutput(ut.getIndex());
+      }
+
+      public int size() {
+         return size;
+      }
+
+      // Returns the transactions in admission order, parents before children
+      public ArrayList<Transaction> getTransactions() {
+         ArrayList<Transaction> T = new ArrayList<Transaction>();
+         for (Record r : records().values())
+            T.add(r.get());
+         return T;
+      }
+
+      // the transactions by hash, in admission order
+      private LinkedHashMap<ByteArrayWrapper, Record> records() {
+         LinkedHashMap<ByteArrayWrapper, Record> T = base == null
+               ? new LinkedHashMap<ByteArrayWrapper, Record>() : base.records();
+         for (ByteArrayWrapper hash : removed)
+            T.remove(hash);
+         T.putAll(added);
+         return T;
+      }
+
+      private Record get(ByteArrayWrapper hash) {
+         Record r = added.get(hash);
+         if (r != null || base == null || removed.contains(hash))
+            return r;
+         return base.get(hash);
+      }
+
+      private boolean contains(ByteArrayWrapper hash) {
+         return get(hash) != null;
+      }
+   }
+
+   // transactions in admission order; a parent is always admitted before its
+   // children, so iterating H gives a valid block order
+   private LinkedHashMap<ByteArrayWrapper, Entry> H;
+   // outpoint -> hash of the pool transaction spending it
+   private HashMap<UTXO, ByteArrayWrapper> spentBy;
+   private TreeSet<Entry> byScore;
+   // serialized transactions when the pool runs off-heap, else null
+   private TxArena arena;
+   private long maxBytes;
+   private long totalBytes;
+   private double minFeeRate;
+   private long nextSeq;
+   // the last view handed out and the changes since, tracked only once
+   // getView has been called
+   private View lastView;
+   private LinkedHashMap<ByteArrayWrapper, Record> addedSinceView;
+   private HashSet<ByteArrayWrapper> removedSinceView;
+   private boolean clearedSinceView;
+   // while a replacement is under way, the entries it removed so far,
+   // kept whole so they can be put back (see replaceTransaction)
+   private ArrayList<Entry> detached;
 
    public TransactionPool() {
-      H = new HashMap<ByteArrayWrapper, Transaction>();
+      this(DEFAULT_MAX_BYTES);
+   }
+
+   // Creates an empty pool whose estimated footprint never exceeds <maxBytes>
+   public TransactionPool(long maxBytes) {
+      this(maxBytes, false);
    }
 
+   /* Creates an empty pool capped at <maxBytes>. With <offHeap> set, pooled
+    * transactions are kept serialized in direct memory and only a compact
+    * index (hash, fee rate, outpoints) stays on the heap; transactions are
+    * rebuilt when they are read back, e.g. to be put into a block.
+    */
+   public TransactionPool(long maxBytes, boolean offHeap) {
+      H = new LinkedHashMap<ByteArrayWrapper, Entry>();
+      spentBy = new HashMap<UTXO, ByteArrayWrapper>();
+      byScore = new TreeSet<Entry>(BY_SCORE);
+      this.maxBytes = maxBytes;
+      if (offHeap)
+         arena = new TxArena();
+   }
+
+   // Creates a copy of <txPool>; on the heap the two share the frozen
+   // transactions
    public TransactionPool(TransactionPool txPool) {
-      H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+      this(txPool.maxBytes, txPool.arena != null);
+      synchronized (txPool) {
+         minFeeRate = txPool.minFeeRate;
+         nextSeq = txPool.nextSeq;
+         for (Entry e : txPool.H.values()) {
+            long handle = e.tx != null ? 0 : arena.store(txPool.arena.load(e.handle));
+            Entry copy = new Entry(e.hash, e.tx, handle, e.spends, e.numOutputs, e.fee, e.size, e.seq);
+            copy.descFee = e.descFee;
+            copy.descSize = e.descSize;
+            copy.descCount = e.descCount;
+            H.put(e.hash, copy);
+            byScore.add(copy);
+            totalBytes += e.size;
+         }
+         spentBy.putAll(txPool.spentBy);
+      }
+   }
+
+   public synchronized void addTransaction(Transaction tx) {
+      addTransaction(tx, 0);
    }
 
-   public void addTransaction(Transaction tx) {
+   // Adds <tx>, which pays <fee> base units, to the pool. If that takes the
+   // pool over its size cap, the lowest scoring packages are evicted.
+   // Returns false if tx pays less than getMinFeeRate(), would break the
+   // package limits (see MAX_PACKAGE_COUNT) or was itself evicted.
+   public synchronized boolean addTransaction(Transaction tx, long fee) {
       ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
-      H.put(hash, tx);
+      if (H.containsKey(hash))
+         return true;
+      int size = estimateSize(tx);
+      if (Amount.toCoins(fee) / size < minFeeRate)
+         return false;
+      UTXO[] spends = new UTXO[tx.numInputs()];
+      for (int i = 0; i < spends.length; i++) {
+         Transaction.Input in = tx.getInput(i);
+         spends[i] = new UTXO(in.prevTxHash, in.outputIndex);
+      }
+      HashSet<Entry> A = ancestors(spends, MAX_PACKAGE_COUNT - 1);
+      if (A == null || !fitsPackageLimits(A, size))
+         return false;
+      // stored before any index points at it
+      byte[] raw = arena == null ? null : tx.serialize();
+      Entry e;
+      if (raw == null || raw.length > TxArena.MAX_RECORD_SIZE)
+         e = new Entry(hash, tx.freeze(), 0, spends, tx.numOutputs(), fee, size, nextSeq++);
+      else
+         e = new Entry(hash, null, arena.store(raw), spends, tx.numOutputs(), fee, size, nextSeq++);
+      for (UTXO ut : spends)
+         spentBy.put(ut, hash);
+      H.put(hash, e);
+      if (lastView != null)
+         addedSinceView.put(hash, record(e));
+      byScore.add(e);
+      totalBytes += size;
+      for (Entry a : A)
+         adjust(a, fee, size, 1);
+      trimToSize();
+      return H.containsKey(hash);
    }
 
-   public void removeTransaction(byte[] txHash) {
-      ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-      H.remove(hash);
+   // true if a transaction of <size> bytes with pool ancestors <A> keeps
+   // every package within the limits
+   private static boolean fitsPackageLimits(HashSet<Entry> A, int size) {
+      long bytes = size;
+      for (Entry a : A) {
+         if (a.descCount >= MAX_PACKAGE_COUNT || a.descSize + size > MAX_PACKAGE_BYTES)
+            return false;
+         bytes += a.size;
+      }
+      return bytes <= MAX_PACKAGE_BYTES;
+   }
+
+   public synchronized void removeTransaction(byte[] txHash) {
+      Entry e = H.get(new ByteArrayWrapper(txHash));
+      if (e != null)
+         remove(Collections.singleton(e));
+   }
+
+   /* removes <R> from the pool and takes each removed entry out of the
+    * packages of its ancestors that stay. That is a subtraction when R holds
+    * all descendants of its entries, as evictions and replacements do; a
+    * removal leaving descendants behind may cut them off from an ancestor
+    * too, so those ancestors have their packages recomputed instead.
+    */
+   private void remove(Collection<Entry> R) {
+      HashSet<Entry> gone = new HashSet<Entry>(R);
+      boolean whole = true;
+      for (Entry e : R)
+         whole = whole && gone.containsAll(neighbours(e, false));
+      HashSet<Entry> stale = new HashSet<Entry>();
+      for (Entry e : R) {
+         for (Entry a : ancestors(e.spends, Integer.MAX_VALUE)) {
+            if (gone.contains(a))
+               continue;
+            if (whole)
+               adjust(a, -e.fee, -e.size, -1);
+            else
+               stale.add(a);
+         }
+      }
+      for (Entry e : R) {
+         H.remove(e.hash);
+         byScore.remove(e);
+         totalBytes -= e.size;
+         for (UTXO ut : e.spends) {
+            if (e.hash.equals(spentBy.get(ut)))
+               spentBy.remove(ut);
+         }
+         if (detached != null)
+            detached.add(e);
+         else
+            release(e);
+      }
+      rescore(stale);
+   }
+
+   // drops what is left of a removed entry: its place in the views and its
+   // arena slot, which is first copied out if a view may still read it
+   private void release(Entry e) {
+      if (lastView != null) {
+         if (addedSinceView.remove(e.hash) == null)
+            removedSinceView.add(e.hash);
+         else
+            e.record = null;
+      }
+      if (e.tx == null) {
+         if (e.record != null)
+            e.record.detach();
+         arena.free(e.handle);
+      }
+   }
+
+   private Record record(Entry e) {
+      if (e.record == null)
+         e.record = new Record(e.tx, arena, e.handle);
+      return e.record;
+   }
+
+   // puts a removed entry back, at the end of the admission order, once
+   // its parents are back; its descendants follow it
+   private void relink(Entry e) {
+      e.descFee = e.fee;
+      e.descSize = e.size;
+      e.descCount = 1;
+      H.put(e.hash, e);
+      byScore.add(e);
+      totalBytes += e.size;
+      for (UTXO ut : e.spends)
+         spentBy.put(ut, e.hash);
+      for (Entry a : ancestors(e.spends, Integer.MAX_VALUE))
+         adjust(a, e.fee, e.size, 1);
+   }
+
+   // pool entries whose outputs <e> spends, or that spend outputs of <e>
+   private ArrayList<Entry> neighbours(Entry e, boolean up) {
+      ArrayList<Entry> N = new ArrayList<Entry>();
+      if (up) {
+         for (UTXO ut : e.spends) {
+            Entry parent = H.get(new ByteArrayWrapper(ut.getTxHash()));
+            if (parent != null && parent != e && !N.contains(parent))
+               N.add(parent);
+         }
+      } else {
+         for (int i = 0; i < e.numOutputs; i++) {
+            ByteArrayWrapper child = spentBy.get(new UTXO(e.hash.getBytes(), i));
+            Entry c = child == null ? null : H.get(child);
+            if (c != null && c != e && !N.contains(c))
+               N.add(c);
+         }
+      }
+      return N;
+   }
+
+   // <from> and all their pool ancestors (<up>) or descendants, each once
+   private HashSet<Entry> closure(Collection<Entry> from, boolean up) {
+      HashSet<Entry> seen = new HashSet<Entry>(from);
+      ArrayList<Entry> stack = new ArrayList<Entry>(from);
+      while (!stack.isEmpty())
+         for (Entry n : neighbours(stack.remove(stack.size() - 1), up))
+            if (seen.add(n))
+               stack.add(n);
+      return seen;
+   }
+
+   // the pool ancestors of a transaction spending <spends>, each once, or
+   // null as soon as there are more than <limit>
+   private HashSet<Entry> ancestors(UTXO[] spends, int limit) {
+      HashSet<Entry> seen = new HashSet<Entry>();
+      ArrayList<Entry> stack = new ArrayList<Entry>();
+      for (UTXO ut : spends) {
+         Entry parent = H.get(new ByteArrayWrapper(ut.getTxHash()));
+         if (parent != null && seen.add(parent))
+            stack.add(parent);
+      }
+      while (!stack.isEmpty()) {
+         if (seen.size() > limit)
+            return null;
+         for (Entry n : neighbours(stack.remove(stack.size() - 1), true))
+            if (seen.add(n))
+               stack.add(n);
+      }
+      return seen.size() > limit ? null : seen;
+   }
+
+   // adds a descendant's <fee>, <size> and <count> (all negative for one
+   // leaving) to the package of <a>
+   private void adjust(Entry a, long fee, long size, int count) {
+      byScore.remove(a);
+      a.descFee += fee;
+      a.descSize += size;
+      a.descCount += count;
+      byScore.add(a);
    }
 
-   public Transaction getTransaction(byte[] txHash) {
+   // recomputes the descendant package of each of <entries>
+   private void rescore(Collection<Entry> entries) {
+      for (Entry e : entries) {
+         byScore.remove(e);
+         e.descFee = 0;
+         e.descSize = 0;
+         e.descCount = 0;
+         for (Entry d : closure(Collections.singleton(e), false)) {
+            e.descFee += d.fee;
+            e.descSize += d.size;
+            e.descCount++;
+         }
+         byScore.add(e);
+      }
+   }
+
+   // Empties the pool, keeping its cap, fee floor and off-heap slabs
+   public synchronized void clear() {
+      if (arena != null) {
+         for (Entry e : H.values())
+            if (e.record != null)
+               e.record.detach();
+      }
+      H.clear();
+      if (lastView != null) {
+         addedSinceView.clear();
+         removedSinceView.clear();
+         clearedSinceView = true;
+      }
+      spentBy.clear();
+      byScore.clear();
+      totalBytes = 0;
+      if (arena != null)
+         arena.clear();
+   }
+
+   // Removes the transaction with hash <txHash> and every pool transaction that
+   // (transitively) spends one of its outputs. Returns the removed transactions.
+   public synchronized ArrayList<Transaction> removeTransactionAndDescendants(byte[] txHash) {
+      ArrayList<Transaction> removed = new ArrayList<Transaction>();
+      for (Entry e : removePackage(txHash))
+         removed.add(materialize(e));
+      return removed;
+   }
+
+   // removes the entry of <txHash> and its descendants, in admission
+   // order; entries are materialized by the caller if needed, before the
+   // arena slot is reused by a later add
+   private ArrayList<Entry> removePackage(byte[] txHash) {
+      Entry root = H.get(new ByteArrayWrapper(txHash));
+      if (root == null)
+         return new ArrayList<Entry>();
+      ArrayList<Entry> removed = new ArrayList<Entry>(closure(Collections.singleton(root), false));
+      Collections.sort(removed, BY_SEQ);
+      remove(removed);
+      return removed;
+   }
+
+   /* Replace-by-fee rules for a transaction <tx> paying <fee> base units that claims
+    * outputs already claimed by pool transactions. It may replace them, and
+    * their descendants, only if
+    * (0) its fee rate is at least getMinFeeRate(),
+    * (1) its fee rate is strictly higher than that of every transaction it
+    *     conflicts with directly,
+    * (2) its fee is strictly higher than the total fee of everything it
+    *     replaces, and
+    * (3) it does not spend an output of anything it replaces.
+    * Only the conflicting transactions and their descendants are visited.
+    */
+   public synchronized boolean isReplacementAllowed(Transaction tx, long fee) {
+      double feeRate = Amount.toCoins(fee) / estimateSize(tx);
+      if (feeRate < minFeeRate)
+         return false;
+      ArrayList<Entry> replaced = getReplacementSet(tx);
+      HashSet<ByteArrayWrapper> replacedHashes = new HashSet<ByteArrayWrapper>();
+      long replacedFees = 0;
+      for (Entry e : replaced) {
+         replacedHashes.add(e.hash);
+         replacedFees = Amount.add(replacedFees, e.fee);
+      }
+      if (fee <= replacedFees)
+         return false;
+      for (Transaction.Input in : tx.getInputs()) {
+         ByteArrayWrapper spender = spentBy.get(new UTXO(in.prevTxHash, in.outputIndex));
+         if (spender != null && feeRate <= H.get(spender).feeRate())
+            return false;
+         if (replacedHashes.contains(new ByteArrayWrapper(in.prevTxHash)))
+            return false;
+      }
+      return true;
+   }
+
+   /* Admits <tx>, paying <fee> base units, in place of the pool transactions
+    * it conflicts with and their descendants, if isReplacementAllowed. They
+    * are dropped for good only once tx is in: should making room for it
+    * evict tx itself, everything removed on the way is put back and the
+    * pool is as it was. Returns true if tx entered the pool.
+    */
+   public synchronized boolean replaceTransaction(Transaction tx, long fee) {
+      if (!isReplacementAllowed(tx, fee))
+         return false;
+      ArrayList<Entry> replaced = getReplacementSet(tx);
+      Collections.sort(replaced, BY_SEQ);
+      double floor = minFeeRate;
+      ArrayList<Entry> removed = new ArrayList<Entry>();
+      boolean admitted;
+      detached = removed;
+      try {
+         remove(replaced);
+         admitted = addTransaction(tx, fee);
+      } finally {
+         detached = null;
+      }
+      if (admitted) {
+         for (Entry e : removed)
+            release(e);
+         return true;
+      }
+      ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
+      ArrayList<Entry> back = new ArrayList<Entry>();
+      for (Entry e : removed) {
+         if (e.hash.equals(hash))
+            release(e);
+         else
+            back.add(e);
+      }
+      Collections.sort(back, BY_SEQ);
+      for (Entry e : back)
+         relink(e);
+      minFeeRate = floor;
+      return false;
+   }
+
+   // pool transactions spending an input of tx, plus their descendants,
+   // each listed once
+   private ArrayList<Entry> getReplacementSet(Transaction tx) {
+      ArrayList<Entry> set = new ArrayList<Entry>();
+      HashSet<ByteArrayWrapper> seen = new HashSet<ByteArrayWrapper>();
+      ArrayList<ByteArrayWrapper> stack = new ArrayList<ByteArrayWrapper>();
+      for (Transaction.Input in : tx.getInputs()) {
+         ByteArrayWrapper spender = spentBy.get(new UTXO(in.prevTxHash, in.outputIndex));
+         if (spender != null)
+            stack.add(spender);
+      }
+      while (!stack.isEmpty()) {
+         ByteArrayWrapper hash = stack.remove(stack.size() - 1);
+         if (!seen.add(hash))
+            continue;
+         Entry e = H.get(hash);
+         set.add(e);
+         for (int i = 0; i < e.numOutputs; i++) {
+            ByteArrayWrapper child = spentBy.get(new UTXO(hash.getBytes(), i));
+            if (child != null)
+               stack.add(child);
+         }
+      }
+      return set;
+   }
+
+   /* Evicts the lowest scoring transaction (see Entry.score) together with
+    * its descendants until the pool fits in maxBytes, and raises the
+    * minimum admission fee rate above the best package evicted so far.
+    */
+   private void trimToSize() {
+      while (totalBytes > maxBytes && !byScore.isEmpty()) {
+         long fees = 0;
+         long bytes = 0;
+         for (Entry e : removePackage(byScore.first().hash.getBytes())) {
+            fees += e.fee;
+            bytes += e.size;
+         }
+         minFeeRate = Math.max(minFeeRate, Amount.toCoins(fees) / bytes + INCREMENTAL_FEE_RATE);
+      }
+   }
+
+   /* Halves the minimum admission fee rate, dropping it to zero once it is
+    * below the incremental rate. Called for every block that extends the tip,
+    * so the floor relaxes again once a flood is over.
+    */
+   public synchronized void decayMinFeeRate() {
+      minFeeRate /= 2;
+      if (minFeeRate < INCREMENTAL_FEE_RATE)
+         minFeeRate = 0;
+   }
+
+   // Returns the fee rate (coins per byte) a transaction must pay to be admitted
+   public synchronized double getMinFeeRate() {
+      return minFeeRate;
+   }
+
+   // Returns the estimated heap footprint of the pooled transactions in bytes
+   public synchronized long getTotalBytes() {
+      return totalBytes;
+   }
+
+   public synchronized long getMaxBytes() {
+      return maxBytes;
+   }
+
+   // Returns the fee recorded for the pool transaction with hash <txHash>,
+   // in base units, or 0 if it is not in the pool
+   public synchronized long getFee(byte[] txHash) {
+      Entry e = H.get(new ByteArrayWrapper(txHash));
+      return e == null ? 0 : e.fee;
+   }
+
+   /* Approximate heap footprint of <tx> once pooled: the transaction object,
+    * every input with its hash and signature, every output with its RSA
+    * address, and the pool index entries for its outpoints.
+    */
+   public static int estimateSize(Transaction tx) {
+      int size = TX_OVERHEAD;
+      for (Transaction.Input in : tx.getInputs()) {
+         size += INPUT_OVERHEAD;
+         if (in.prevTxHash != null)
+            size += in.prevTxHash.length;
+         if (in.signature != null)
+            size += in.signature.length;
+      }
+      for (Transaction.Output op : tx.getOutputs()) {
+         size += OUTPUT_OVERHEAD + 2 * BIGINTEGER_OVERHEAD;
+         if (op.address != null)
+            size += (op.address.getExponent().bitLength() + op.address.getModulus().bitLength()) / 8;
+      }
+      return size;
+   }
+
+   public synchronized Transaction getTransaction(byte[] txHash) {
       ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-      return H.get(hash);
+      Entry e = H.get(hash);
+      return e == null ? null : materialize(e);
+   }
+
+   // Returns a copy of the transaction of <e>, decoding it from the arena
+   // if it is kept there
+   private Transaction materialize(Entry e) {
+      if (e.tx != null)
+         return e.tx.toTransaction();
+      return Transaction.deserialize(arena.load(e.handle));
+   }
+
+   public synchronized boolean contains(byte[] txHash) {
+      return H.containsKey(new ByteArrayWrapper(txHash));
+   }
+
+   // Returns the pool transaction spending <ut>, or null if no pool
+   // transaction claims it
+   public synchronized Transaction getSpender(UTXO ut) {
+      ByteArrayWrapper hash = spentBy.get(ut);
+      if (hash == null)
+         return null;
+      return materialize(H.get(hash));
+   }
+
+   // Returns true if some pool transaction claims <ut>
+   public synchronized boolean isSpent(UTXO ut) {
+      return spentBy.containsKey(ut);
+   }
+
+   // Returns the output <ut> if it was created by a pool transaction, else
+   // null. Outputs already claimed by another pool transaction are still
+   // returned; use isSpent to find out.
+   public synchronized Transaction.Output getOutput(UTXO ut) {
+      Entry e = H.get(new ByteArrayWrapper(ut.getTxHash()));
+      if (e == null || ut.getIndex() < 0 || ut.getIndex() >= e.numOutputs)
+         return null;
+      if (e.tx != null)
+         return e.tx.getOutput(ut.getIndex());
+      return materialize(e).getOutput(ut.getIndex());
+   }
+
+   // Returns true if <ut> is an output created by a pool transaction
+   public synchronized boolean containsOutput(UTXO ut) {
+      Entry e = H.get(new ByteArrayWrapper(ut.getTxHash()));
+      return e != null && ut.getIndex() >= 0 && ut.getIndex() < e.numOutputs;
+   }
+
+   public synchronized boolean isOffHeap() {
+      return arena != null;
    }
 
-   public ArrayList<Transaction> getTransactions() {
+   public synchronized int size() {
+      return H.size();
+   }
+
+   // Returns the pool transactions in admission order, parents before children
+   public synchronized ArrayList<Transaction> getTransactions() {
       ArrayList<Transaction> T = new ArrayList<Transaction>();
-      for (Transaction tx : H.values())
-         T.add(tx);
+      for (Entry e : H.values())
+         T.add(materialize(e));
       return T;
    }
+
+   /* Returns an immutable view of the pool's current transactions, which
+    * stays valid however the pool changes afterwards. Taking a view costs
+    * O(changes since the last one); the first call indexes the pool, without
+    * decoding anything, and turns on change tracking.
+    */
+   public synchronized View getView() {
+      if (lastView != null && addedSinceView.isEmpty() && removedSinceView.isEmpty() && !clearedSinceView)
+         return lastView;
+      if (lastView == null) {
+         LinkedHashMap<ByteArrayWrapper, Record> T = new LinkedHashMap<ByteArrayWrapper, Record>();
+         for (Entry e : H.values())
+            T.put(e.hash, record(e));
+         lastView = View.of(T);
+      } else {
+         View base = clearedSinceView ? null : lastView;
+         lastView = new View(base, addedSinceView, removedSinceView);
+         if (lastView.depth > View.MAX_LAYERS)
+            lastView = View.of(lastView.records());
+      }
+      addedSinceView = new LinkedHashMap<ByteArrayWrapper, Record>();
+      removedSinceView = new HashSet<ByteArrayWrapper>();
+      clearedSinceView = false;
+      return lastView;
+   }
+
+   /* Writes every pool transaction, in admission order, to <file>: a header,
+    * one length-prefixed serialized transaction per entry and a SHA-256
+    * trailer over everything before it. The file is written next to <file>
+    * and renamed over it, so a crash never leaves a torn dump behind.
+    */
+   public synchronized void dump(File file) throws IOException {
+      File tmp = new File(file.getPath() + ".tmp");
+      MessageDigest md = sha256();
+      DataOutputStream out = new DataOutputStream(new DigestOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmp)), md));
+      try {
+         out.writeInt(DUMP_MAGIC);
+         out.writeInt(DUMP_VERSION);
+         out.writeInt(H.size());
+         for (Entry e : H.values()) {
+            byte[] raw = e.tx != null ? e.tx.toTransaction().serialize() : arena.load(e.handle);
+            out.writeInt(raw.length);
+            out.write(raw);
+         }
+         out.write(md.digest());
+      } finally {
+         out.close();
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+   }
+
+   /* Reads the transactions written by dump, in the order they were pooled.
+    * Throws IOException if the file is not a dump or fails its checksum.
+    */
+   public static ArrayList<Transaction> readDump(File file) throws IOException {
+      MessageDigest md = sha256();
+      DataInputStream in = new DataInputStream(new DigestInputStream(
+            new BufferedInputStream(new FileInputStream(file)), md));
+      try {
+         if (in.readInt() != DUMP_MAGIC || in.readInt() != DUMP_VERSION)
+            throw new IOException(file + " is not a transaction pool dump");
+         int count = in.readInt();
+         ArrayList<Transaction> T = new ArrayList<Transaction>();
+         for (int i = 0; i < count; i++) {
+            int len = in.readInt();
+            // no pooled transaction is larger than a package may be
+            if (len < 0 || len > MAX_PACKAGE_BYTES)
+               throw new IOException(file + " has a corrupt entry");
+            byte[] raw = new byte[len];
+            in.readFully(raw);
+            try {
+               T.add(Transaction.deserialize(raw));
+            } catch (RuntimeException x) {
+               throw new IOException(file + " has a corrupt entry", x);
+            }
+         }
+         // the trailer itself is not part of the digest
+         byte[] expected = md.digest();
+         byte[] trailer = new byte[expected.length];
+         in.readFully(trailer);
+         if (!Arrays.equals(expected, trailer))
+            throw new IOException(file + " failed its checksum");
+         return T;
+      } finally {
+         in.close();
+      }
+   }
+
+   private static MessageDigest sha256() throws IOException {
+      try {
+         return MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException x) {
+         throw new IOException(x);
+      }
+   }
 }
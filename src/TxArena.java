@@ -0,0 +1,119 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/* Off-heap storage for serialized transactions. Records live in direct
+ * ByteBuffer slabs, carved into power-of-two slots; freed slots go on a
+ * free-list per slot size and are reused before the slab is bumped further.
+ * A record is addressed by a long handle (slab, offset, slot size). Safe
+ * for use from several threads, so pool views can read records while the
+ * pool changes.
+ */
+public class TxArena {
+   public static final int SLAB_SIZE = 1 << 20;
+   private static final int MIN_SHIFT = 6;   // 64 byte slots
+   private static final int MAX_SHIFT = 20;  // one slot per slab
+   private static final int HEADER = 4;      // record length
+   // the largest record a slot can hold
+   public static final int MAX_RECORD_SIZE = SLAB_SIZE - HEADER;
+
+   private ArrayList<ByteBuffer> slabs;
+   // free slot handles per size class, used as stacks
+   private long[][] freeLists;
+   private int[] freeCounts;
+   private int bumpOffset;
+   private long usedBytes;
+
+   public TxArena() {
+      slabs = new ArrayList<ByteBuffer>();
+      freeLists = new long[MAX_SHIFT + 1][];
+      freeCounts = new int[MAX_SHIFT + 1];
+      for (int i = MIN_SHIFT; i <= MAX_SHIFT; i++)
+         freeLists[i] = new long[16];
+      bumpOffset = SLAB_SIZE;
+   }
+
+   // Copies <data>, at most MAX_RECORD_SIZE bytes, into the arena and
+   // returns its handle
+   public synchronized long store(byte[] data) {
+      int shift = MIN_SHIFT;
+      while ((1 << shift) < data.length + HEADER) {
+         shift++;
+         if (shift > MAX_SHIFT)
+            throw new IllegalArgumentException("record of " + data.length + " bytes exceeds slab size");
+      }
+      long handle;
+      if (freeCounts[shift] > 0) {
+         handle = freeLists[shift][--freeCounts[shift]];
+      } else {
+         if (bumpOffset + (1 << shift) > SLAB_SIZE) {
+            slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+            bumpOffset = 0;
+         }
+         handle = makeHandle(slabs.size() - 1, bumpOffset, shift);
+         bumpOffset += 1 << shift;
+      }
+      ByteBuffer slab = slabs.get(slabOf(handle)).duplicate();
+      slab.position(offsetOf(handle));
+      slab.putInt(data.length);
+      slab.put(data);
+      usedBytes += 1 << shift;
+      return handle;
+   }
+
+   // Returns a copy of the record stored under <handle>
+   public synchronized byte[] load(long handle) {
+      ByteBuffer slab = slabs.get(slabOf(handle)).duplicate();
+      slab.position(offsetOf(handle));
+      byte[] data = new byte[slab.getInt()];
+      slab.get(data);
+      return data;
+   }
+
+   // Returns the slot of <handle> to its free-list
+   public synchronized void free(long handle) {
+      int shift = shiftOf(handle);
+      if (freeCounts[shift] == freeLists[shift].length) {
+         long[] grown = new long[2 * freeLists[shift].length];
+         System.arraycopy(freeLists[shift], 0, grown, 0, freeCounts[shift]);
+         freeLists[shift] = grown;
+      }
+      freeLists[shift][freeCounts[shift]++] = handle;
+      usedBytes -= 1 << shift;
+   }
+
+   // Forgets every record but keeps the slabs for reuse
+   public synchronized void clear() {
+      for (int i = MIN_SHIFT; i <= MAX_SHIFT; i++)
+         freeCounts[i] = 0;
+      while (slabs.size() > 1)
+         slabs.remove(slabs.size() - 1);
+      bumpOffset = slabs.isEmpty() ? SLAB_SIZE : 0;
+      usedBytes = 0;
+   }
+
+   // Bytes held in occupied slots
+   public synchronized long getUsedBytes() {
+      return usedBytes;
+   }
+
+   // Bytes of direct memory reserved by the slabs
+   public synchronized long getCapacityBytes() {
+      return (long) slabs.size() * SLAB_SIZE;
+   }
+
+   private static long makeHandle(int slab, int offset, int shift) {
+      return ((long) slab << 32) | ((long) shift << 24) | offset;
+   }
+
+   private static int slabOf(long handle) {
+      return (int) (handle >>> 32);
+   }
+
+   private static int shiftOf(long handle) {
+      return (int) (handle >>> 24) & 0xff;
+   }
+
+   private static int offsetOf(long handle) {
+      return (int) handle & 0xffffff;
+   }
+}
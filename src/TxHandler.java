@@ -1,8 +1,14 @@
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 public class TxHandler {
+	// blocks with fewer transactions are connected sequentially
+	public static final int PARALLEL_MIN_TXS = 64;
 
 	private UTXOPool pool;
+	private SignatureCache sigCache;
 	
 	/* Creates a public ledger whose current UTXOPool (collection of unspent 
 	 * transaction outputs) is utxoPool. This should make a defensive copy of 
@@ -12,6 +18,14 @@ public class TxHandler {
 		pool = new UTXOPool(utxoPool);
 	}
 
+	/* Same as above, but signatures already recorded in <sigCache> are not
+	 * verified again, and newly verified ones are added to it.
+	 */
+	public TxHandler(UTXOPool utxoPool, SignatureCache sigCache) {
+		this(utxoPool);
+		this.sigCache = sigCache;
+	}
+
 	/* Returns true if 
 	 * (1) all outputs claimed by tx are in the current UTXO pool,  
 	 * (2) the signatures on each input of tx are valid, 
@@ -22,59 +36,99 @@ public class TxHandler {
 	   and false otherwise.
 	 */
 	public boolean isValidTx(Transaction tx) {
+		return isValidTx(tx, pool, null, sigCache);
+	}
+
+	/* Same checks as isValidTx(tx), but each claimed output is looked up in
+	 * <base> first and then among the outputs of the transactions in <pending>,
+	 * which are not in a block yet. <pending> may be null. Signatures found
+	 * in <sigCache> are trusted; <sigCache> may be null.
+	 */
+	public static boolean isValidTx(Transaction tx, UTXOPool base, TransactionPool pending, SignatureCache sigCache) {
 		// List of all inputs and outputs in this transaction
 		ArrayList<Transaction.Input> inputs = tx.getInputs();
 		ArrayList<Transaction.Output> outputs = tx.getOutputs();
-		//List of all UTXOs in current pool 
-		ArrayList<UTXO> UTXOs = pool.getAllUTXO();
-		//List of all UTXOs that were previously seen (to avoid multiple claims)
-		ArrayList<UTXO> prevUTXOs = new ArrayList<UTXO>();
-		//Variables to track input and output vales 
-		double inValue = 0.0;
-		double outValue = 0.0;
+		//Set of all UTXOs that were previously seen (to avoid multiple claims)
+		HashSet<UTXO> prevUTXOs = new HashSet<UTXO>();
+		//Outputs claimed by each input, kept for the signature pass
+		Transaction.Output[] prevOuts = new Transaction.Output[inputs.size()];
+		//Input and output values, summed exactly once all are known
+		double[] inValues = new double[inputs.size()];
+		double[] outValues = new double[outputs.size()];
 		
+		/* cheap checks first, so an invalid tx is usually rejected
+		 * before any RSA work is done
+		 */
 		int index = 0;
 		for (Transaction.Input i : inputs) {
 			//create UTXO item given previous hash and index from input
 			UTXO currUTXO = new UTXO(i.prevTxHash, i.outputIndex);
 			
 			//check previously checked UTXOs. If seen, multiple claim -> return false
-			if (prevUTXOs.contains(currUTXO)) return false;
-			
 			//Assuming currUTXO was not seen, add to list of previously seen UTXOs
-			prevUTXOs.add(currUTXO);
-			
-			//check if currUTXO is in the current pool. if not, return false;
-			if (!UTXOs.contains(currUTXO)) return false;
-			
-			/*check for valid signature and data
-			 * getTxOutput returns a value and RSA address
-			 * use RSA verifySignature(message, signature) on RSA address - found in RSA API
-			 * tx.getRawDataToSign = message to sign
-			 * index = index of byte in byte[]??? 
-			 * signature = i.signature
-			 */
-			if (!pool.getTxOutput(currUTXO).address.verifySignature(tx.getRawDataToSign(index), i.signature)) return false;
-			index++;
+			if (!prevUTXOs.add(currUTXO)) return false;
 			
-			//increment input value counter
-			inValue += pool.getTxOutput(currUTXO).value;			
+			//check if currUTXO is in the current pool (or pending outputs). if not, return false;
+			Transaction.Output prevOut = base.getTxOutput(currUTXO);
+			if (prevOut == null && pending != null) prevOut = pending.getOutput(currUTXO);
+			if (prevOut == null) return false;
+			inValues[index] = prevOut.value;
+			prevOuts[index++] = prevOut;
 		}
 		
+		index = 0;
 		for (Transaction.Output o : outputs) {
 			//check output value, if negative return false 
 			if (o.value < 0) return false;
-			
-			//increment output value
-			outValue += o.value;
+			outValues[index++] = o.value;
 		}
 		
-		//return false if sum of input value < sum of output value
-		if (inValue < outValue) return false;
+		//return false if sum of input value < sum of output value; a value
+		//that is not finite or a sum out of range makes the tx invalid
+		try {
+			if (Amount.net(inValues, outValues) < 0) return false;
+		} catch (ArithmeticException x) {
+			return false;
+		}
+
+		/*check for valid signature and data
+		 * getTxOutput returns a value and RSA address
+		 * use RSA verifySignature(message, signature) on RSA address - found in RSA API
+		 * tx.getRawDataToSign = message to sign
+		 * signature = i.signature
+		 */
+		for (index = 0; index < inputs.size(); index++) {
+			if (!SignatureCache.verify(sigCache, prevOuts[index].address, tx.getRawDataToSign(index), inputs.get(index).signature)) return false;
+		}
 
 		return true;
 	}
 
+	/* Returns the fee paid by tx: the sum of the values it claims minus the
+	 * sum of its outputs. Claimed outputs are looked up as in
+	 * isValidTx(tx, base, pending); tx is assumed to be valid.
+	 */
+	public static double getFee(Transaction tx, UTXOPool base, TransactionPool pending) {
+		return Amount.toCoins(getFeeAmount(tx, base, pending));
+	}
+
+	// Same as getFee, in base units (see Amount.net). Throws
+	// ArithmeticException if a value is not finite or the fee out of range.
+	public static long getFeeAmount(Transaction tx, UTXOPool base, TransactionPool pending) {
+		double[] inValues = new double[tx.numInputs()];
+		for (int j = 0; j < inValues.length; j++) {
+			Transaction.Input i = tx.getInput(j);
+			UTXO currUTXO = new UTXO(i.prevTxHash, i.outputIndex);
+			Transaction.Output prevOut = base.getTxOutput(currUTXO);
+			if (prevOut == null && pending != null) prevOut = pending.getOutput(currUTXO);
+			inValues[j] = prevOut.value;
+		}
+		double[] outValues = new double[tx.numOutputs()];
+		for (int j = 0; j < outValues.length; j++)
+			outValues[j] = tx.getOutput(j).value;
+		return Amount.net(inValues, outValues);
+	}
+
 	/* Handles each epoch by receiving an unordered array of proposed 
 	 * transactions, checking each transaction for correctness, 
 	 * returning a mutually valid array of accepted transactions, 
@@ -156,6 +210,114 @@ public class TxHandler {
 		return validTx.toArray(new Transaction[0]);
 	}
 	
+	/* Strict mode for connecting a block: validates txs in the given order,
+	 * applying each one to the current UTXO pool before checking the next,
+	 * and stops at the first invalid transaction. Returns true if all of
+	 * them were valid. After a false return the pool holds a partially
+	 * applied block and the handler should be discarded.
+	 *
+	 * A large block is split into groups of transactions that touch
+	 * disjoint outputs (see partition), which are validated in parallel,
+	 * each in block order, against a striped concurrent view over the
+	 * pool. As no two groups touch the same output, the outcome is the
+	 * sequential one; the transactions are then applied to the pool in
+	 * block order, so the result does not depend on the scheduling.
+	 */
+	public boolean connectTxs(List<Transaction> txs) {
+		if (txs.size() >= PARALLEL_MIN_TXS) {
+			List<List<Transaction>> groups = partition(txs);
+			if (groups != null && groups.size() > 1) {
+				ConcurrentUTXOPool view = new ConcurrentUTXOPool(pool);
+				if (!groups.parallelStream().allMatch(g -> connectGroup(g, view))) return false;
+				for (Transaction tx : txs) apply(pool, tx);
+				return true;
+			}
+		}
+		for (Transaction tx : txs) {
+			if (tx == null || !isValidTx(tx)) return false;
+			apply(pool, tx);
+		}
+		return true;
+	}
+	
+	// validates and applies a group of transactions, in order, to <view>;
+	// an output some other thread spent first fails the group too
+	private boolean connectGroup(List<Transaction> group, ConcurrentUTXOPool view) {
+		for (Transaction tx : group) {
+			if (!isValidTx(tx, view, null, sigCache)) return false;
+			for (Transaction.Input in : tx.getInputs())
+				if (view.spendIfPresent(new UTXO(in.prevTxHash, in.outputIndex)) == null) return false;
+			for (int i = 0; i < tx.numOutputs(); i++)
+				view.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+		}
+		return true;
+	}
+	
+	private static void apply(UTXOPool uPool, Transaction tx) {
+		for (Transaction.Input in : tx.getInputs())
+			uPool.removeUTXO(new UTXO(in.prevTxHash, in.outputIndex));
+		for (int i = 0; i < tx.numOutputs(); i++)
+			uPool.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+	}
+	
+	/* Splits txs into groups, each in block order, such that two
+	 * transactions are in the same group if one spends an output of the
+	 * other, if both spend the same output or if they have the same hash
+	 * (and thus create the same outputs). Returns null if a transaction,
+	 * its hash or the hash an input refers to is missing.
+	 */
+	private static List<List<Transaction>> partition(List<Transaction> txs) {
+		int n = txs.size();
+		int[] parent = new int[n];
+		HashMap<ByteArrayWrapper, Integer> creator = new HashMap<ByteArrayWrapper, Integer>();
+		HashMap<UTXO, Integer> spender = new HashMap<UTXO, Integer>();
+		for (int i = 0; i < n; i++) {
+			Transaction tx = txs.get(i);
+			if (tx == null || tx.getHash() == null) return null;
+			parent[i] = i;
+			Integer same = creator.putIfAbsent(new ByteArrayWrapper(tx.getHash()), i);
+			if (same != null) union(parent, i, same);
+			for (Transaction.Input in : tx.getInputs()) {
+				if (in.prevTxHash == null) return null;
+				Integer other = spender.putIfAbsent(new UTXO(in.prevTxHash, in.outputIndex), i);
+				if (other != null) union(parent, i, other);
+			}
+		}
+		// a spent output may be created later in the block, which the
+		// group's block order then rejects
+		for (int i = 0; i < n; i++) {
+			for (Transaction.Input in : txs.get(i).getInputs()) {
+				Integer c = creator.get(new ByteArrayWrapper(in.prevTxHash));
+				if (c != null) union(parent, i, c);
+			}
+		}
+		HashMap<Integer, List<Transaction>> groups = new HashMap<Integer, List<Transaction>>();
+		List<List<Transaction>> G = new ArrayList<List<Transaction>>();
+		for (int i = 0; i < n; i++) {
+			int root = find(parent, i);
+			List<Transaction> g = groups.get(root);
+			if (g == null) {
+				g = new ArrayList<Transaction>();
+				groups.put(root, g);
+				G.add(g);
+			}
+			g.add(txs.get(i));
+		}
+		return G;
+	}
+	
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+	
+	private static void union(int[] parent, int a, int b) {
+		parent[find(parent, a)] = find(parent, b);
+	}
+	
 	/* Returns the current UTXO pool.If no outstanding UTXOs, returns an empty (non-null) UTXOPool object. */
 	public UTXOPool getUTXOPool() {
 		return pool;
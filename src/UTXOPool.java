@@ -6,50 +6,449 @@
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class UTXOPool {
    
    // The current collection of UTXOs, with each one mapped to its corresponding 
    // transaction output
+   // (in a layered pool: the UTXOs added on top of <base>)
    private HashMap<UTXO, Transaction.Output> H;
+   // A layered pool reads through to <base>, hiding the UTXOs in <removed>
+   private UTXOPool base;
+   private HashSet<UTXO> removed;
+   // number of layers down to the flat pool at the bottom
+   private int depth;
+   // UTXOs by address, null unless enabled (see enableAddressIndex); the
+   // base of an indexed layer is indexed too
+   private AddressIndex index;
    
+   /* Iterates over the entries of a pool without copying them: the entries
+    * of each layer's own map that no layer above it shadows, flat base
+    * first. Splits between layers, then within a layer's map, so parallel
+    * streams spread a large base over all cores.
+    */
+   private static class EntrySpliterator
+         implements Spliterator<Map.Entry<UTXO, Transaction.Output>>, Consumer<Map.Entry<UTXO, Transaction.Output>> {
+      // the pool's layers, flat base first
+      private final UTXOPool[] levels;
+      // levels not started yet
+      private int next, end;
+      // the part of level <at> being traversed, or null
+      private Spliterator<Map.Entry<UTXO, Transaction.Output>> current;
+      private int at;
+      private Map.Entry<UTXO, Transaction.Output> found;
+
+      public EntrySpliterator(UTXOPool[] levels, int next, int end) {
+         this.levels = levels;
+         this.next = next;
+         this.end = end;
+      }
+
+      private EntrySpliterator(UTXOPool[] levels, int at, Spliterator<Map.Entry<UTXO, Transaction.Output>> current) {
+         this(levels, at + 1, at + 1);
+         this.at = at;
+         this.current = current;
+      }
+
+      // the entries a level holds itself
+      private static Spliterator<Map.Entry<UTXO, Transaction.Output>> own(UTXOPool level) {
+         if (level instanceof ConcurrentUTXOPool)
+            return level.spliterator();
+         return level.H.entrySet().spliterator();
+      }
+
+      // true unless a level above <level> adds or removes <ut>
+      private boolean visible(int level, UTXO ut) {
+         for (int i = level + 1; i < levels.length; i++)
+            if (levels[i].H.containsKey(ut) || levels[i].removed.contains(ut))
+               return false;
+         return true;
+      }
+
+      public void accept(Map.Entry<UTXO, Transaction.Output> e) {
+         if (visible(at, e.getKey()))
+            found = e;
+      }
+
+      public boolean tryAdvance(Consumer<? super Map.Entry<UTXO, Transaction.Output>> action) {
+         while (true) {
+            if (current == null) {
+               if (next >= end)
+                  return false;
+               at = next++;
+               current = own(levels[at]);
+            }
+            found = null;
+            while (current.tryAdvance(this)) {
+               if (found != null) {
+                  action.accept(found);
+                  return true;
+               }
+            }
+            current = null;
+         }
+      }
+
+      public void forEachRemaining(Consumer<? super Map.Entry<UTXO, Transaction.Output>> action) {
+         while (true) {
+            if (current == null) {
+               if (next >= end)
+                  return;
+               at = next++;
+               current = own(levels[at]);
+            }
+            final int level = at;
+            current.forEachRemaining(e -> {
+               if (visible(level, e.getKey()))
+                  action.accept(e);
+            });
+            current = null;
+         }
+      }
+
+      public Spliterator<Map.Entry<UTXO, Transaction.Output>> trySplit() {
+         if (current != null && next < end) {
+            EntrySpliterator rest = new EntrySpliterator(levels, next, end);
+            end = next;
+            return rest;
+         }
+         if (current == null && end - next > 1) {
+            int mid = (next + end) >>> 1;
+            EntrySpliterator lower = new EntrySpliterator(levels, next, mid);
+            next = mid;
+            return lower;
+         }
+         if (current == null) {
+            if (next >= end)
+               return null;
+            at = next++;
+            current = own(levels[at]);
+         }
+         Spliterator<Map.Entry<UTXO, Transaction.Output>> part = current.trySplit();
+         return part == null ? null : new EntrySpliterator(levels, at, part);
+      }
+
+      public long estimateSize() {
+         long n = current == null ? 0 : current.estimateSize();
+         for (int i = next; i < end; i++)
+            n += levels[i] instanceof ConcurrentUTXOPool ? levels[i].size() : levels[i].H.size();
+         return n;
+      }
+
+      public int characteristics() {
+         return DISTINCT | NONNULL;
+      }
+   }
+
    // Creates a new empty UTXOPool
    public UTXOPool() {
       H = new HashMap<UTXO, Transaction.Output>();
    }
    
-   // Creates a new UTXOPool that is a copy of <uPool>
+   // Creates a new UTXOPool that is a copy of <uPool>. A copy of a layered
+   // pool is a layer over the same base, a copy of a concurrent pool is flat.
    public UTXOPool(UTXOPool uPool) {
+      if (uPool instanceof ConcurrentUTXOPool) {
+         H = new HashMap<UTXO, Transaction.Output>();
+         for (UTXO ut : uPool.getAllUTXO())
+            H.put(ut, pooled(uPool.getTxOutput(ut)));
+         return;
+      }
       H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+      if (uPool.base != null) {
+         base = uPool.base;
+         removed = new HashSet<UTXO>(uPool.removed);
+         depth = uPool.depth;
+      }
+      if (uPool.index != null)
+         index = new AddressIndex(uPool.index);
+   }
+   
+   // Returns an empty layer over <base>: it starts out with the contents of
+   // <base> and records its own changes, leaving <base> untouched. Costs
+   // O(changes) instead of a full copy; <base> must not change while the
+   // layer is in use. A layer over an indexed pool is indexed.
+   public static UTXOPool layer(UTXOPool base) {
+      UTXOPool uPool = new UTXOPool();
+      uPool.base = base;
+      uPool.removed = new HashSet<UTXO>();
+      uPool.depth = base.getDepth() + 1;
+      if (base.index != null)
+         uPool.index = new AddressIndex(true);
+      return uPool;
+   }
+   
+   // Returns a copy of <uPool> that does not depend on any base pool
+   public static UTXOPool flatten(UTXOPool uPool) {
+      UTXOPool flat = flatCopy(uPool);
+      if (uPool.index != null)
+         flat.enableAddressIndex();
+      return flat;
    }
    
-   // Adds a mapping from UTXO <utxo> to transaction output <txOut> to the pool
+   /* Returns a pool with the contents of layer <uPool> that keeps lookups
+    * cheap without copying much. The newest layers are merged into one for
+    * as long as the layer below them holds no more entries than they do
+    * together, so every layer ends up bigger than all those above it: the
+    * depth stays logarithmic and an entry is merged O(log n) times. Only
+    * once the merged layers are as big as the flat pool at the bottom is a
+    * flat copy made. <uPool> and the pools below it are left untouched.
+    */
+   public static UTXOPool compact(UTXOPool uPool) {
+      if (uPool.base == null)
+         return uPool;
+      long merged = uPool.getOwnSize();
+      UTXOPool base = uPool.base;
+      while (base.base != null && base.getOwnSize() <= merged) {
+         merged += base.getOwnSize();
+         base = base.base;
+      }
+      if (base.base == null && base.size() <= merged)
+         return flatten(uPool);
+      return base == uPool.base ? uPool : squash(uPool, base);
+   }
+   
+   // a layer over <base>, which <top> reads through to, with the contents
+   // of <top>: the changes of the layers in between replayed oldest first
+   private static UTXOPool squash(UTXOPool top, UTXOPool base) {
+      ArrayList<UTXOPool> between = new ArrayList<UTXOPool>();
+      for (UTXOPool p = top; p != base; p = p.base)
+         between.add(0, p);
+      UTXOPool uPool = layer(base);
+      for (UTXOPool p : between) {
+         for (UTXO ut : p.removed)
+            uPool.removeUTXO(ut);
+         for (Map.Entry<UTXO, Transaction.Output> e : p.H.entrySet())
+            uPool.addUTXO(e.getKey(), e.getValue());
+      }
+      return uPool;
+   }
+   
+   // flatten without the index
+   private static UTXOPool flatCopy(UTXOPool uPool) {
+      if (uPool instanceof ConcurrentUTXOPool)
+         return new UTXOPool(uPool);
+      if (uPool.base == null) {
+         UTXOPool flat = new UTXOPool();
+         flat.H.putAll(uPool.H);
+         return flat;
+      }
+      UTXOPool flat = flatCopy(uPool.base);
+      for (UTXO ut : uPool.removed)
+         flat.H.remove(ut);
+      flat.H.putAll(uPool.H);
+      return flat;
+   }
+   
+   /* Indexes the pool's UTXOs by address, so getBalance and getUTXOsOf no
+    * longer scan the whole pool. From then on addUTXO and removeUTXO keep
+    * the index up to date, and layers over the pool are indexed too. Only
+    * a flat pool can be indexed after the fact.
+    */
+   public void enableAddressIndex() {
+      if (index != null)
+         return;
+      if (base != null)
+         throw new IllegalStateException("only a flat pool can be indexed");
+      index = new AddressIndex(false);
+      for (Map.Entry<UTXO, Transaction.Output> e : H.entrySet())
+         index.add(e.getKey(), e.getValue());
+   }
+   
+   public boolean isAddressIndexed() {
+      return index != null;
+   }
+   
+   /* Adds a mapping from UTXO <utxo> to transaction output <txOut> to the
+    * pool. The pool keeps its own copy of <txOut> paying the interned
+    * address (see Address), so outputs paying the same key share it.
+    */
    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+      txOut = pooled(txOut);
+      if (index != null) {
+         Transaction.Output old = getTxOutput(utxo);
+         if (old != null)
+            index.remove(utxo, old);
+         index.add(utxo, txOut);
+      }
       H.put(utxo, txOut);
+      if (base != null)
+         removed.remove(utxo);
+   }
+   
+   // the form of <txOut> a pool holds
+   static Transaction.Output pooled(Transaction.Output txOut) {
+      if (txOut == null || txOut.address == null || txOut.address instanceof Address)
+         return txOut;
+      return new Transaction.Output(txOut.value, Address.intern(txOut.address));
    }
    
    // Removes the UTXO <utxo> from the pool 
    public void removeUTXO(UTXO utxo) {
+      if (index != null) {
+         Transaction.Output old = getTxOutput(utxo);
+         if (old != null)
+            index.remove(utxo, old);
+      }
       H.remove(utxo);
+      if (base != null && base.contains(utxo))
+         removed.add(utxo);
    }
    
    // Returns the transaction output corresponding to UTXO <utxo>, or null if 
    // <utxo> is not in the pool.
    public Transaction.Output getTxOutput(UTXO ut) {
-      return H.get(ut);
+      Transaction.Output txOut = H.get(ut);
+      if (txOut != null || base == null || removed.contains(ut))
+         return txOut;
+      return base.getTxOutput(ut);
    }
    
    // Returns true if UTXO <utxo> is in the pool and false otherwise
    public boolean contains(UTXO utxo) {
-      return H.containsKey(utxo);
+      if (H.containsKey(utxo))
+         return true;
+      return base != null && !removed.contains(utxo) && base.contains(utxo);
+   }
+   
+   // Returns the number of UTXOs in the pool
+   public int size() {
+      if (base == null)
+         return H.size();
+      int n = base.size() - removed.size();
+      for (UTXO ut : H.keySet())
+         if (!base.contains(ut))
+            n++;
+      return n;
+   }
+   
+   // Returns the number of layers between this pool and its flat base
+   // (0 for a pool that does not depend on any base)
+   public int getDepth() {
+      return depth;
+   }
+   
+   // Returns the number of entries this pool holds itself, not counting
+   // the ones it reads through to its base
+   public int getOwnSize() {
+      return H.size() + (removed == null ? 0 : removed.size());
+   }
+   
+   // Returns the total value of the UTXOs paying <address> in base units,
+   // each rounded to the nearest unit (see Amount.round);
+   // O(depth) if the pool is indexed, a parallel scan otherwise
+   public long getBalance(RSAKey address) {
+      if (index == null)
+         return entries(true).filter(e -> Address.same(e.getValue().address, address))
+               .mapToLong(e -> Amount.round(e.getValue().value)).reduce(0, Amount::add);
+      Address k = Address.find(address);
+      if (k == null)
+         return 0;
+      long value = 0;
+      for (UTXOPool p = this; p != null; p = p.base)
+         value += p.index.getValue(k);
+      return value;
+   }
+   
+   // Returns the number of UTXOs paying <address>
+   public int countUTXOsOf(RSAKey address) {
+      if (index == null)
+         return (int) count(txOut -> Address.same(txOut.address, address));
+      Address k = Address.find(address);
+      if (k == null)
+         return 0;
+      int n = 0;
+      for (UTXOPool p = this; p != null; p = p.base)
+         n += p.index.getCount(k);
+      return n;
+   }
+   
+   // Returns the UTXOs paying <address>; O(their number plus the layers'
+   // changes to it) if the pool is indexed, a parallel scan otherwise
+   public ArrayList<UTXO> getUTXOsOf(RSAKey address) {
+      if (index == null)
+         return entries(true).filter(e -> Address.same(e.getValue().address, address))
+               .map(e -> e.getKey()).collect(Collectors.toCollection(ArrayList::new));
+      Address k = Address.find(address);
+      if (k == null)
+         return new ArrayList<UTXO>();
+      return new ArrayList<UTXO>(utxosOf(k));
+   }
+   
+   private HashSet<UTXO> utxosOf(Address k) {
+      HashSet<UTXO> utxos = base == null ? new HashSet<UTXO>() : base.utxosOf(k);
+      index.apply(k, utxos);
+      return utxos;
+   }
+   
+   // Returns a spliterator over the (UTXO, output) entries of the pool,
+   // which must not change while it is in use
+   public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+      ArrayList<UTXOPool> chain = new ArrayList<UTXOPool>();
+      for (UTXOPool p = this; p != null; p = p.base)
+         chain.add(p);
+      UTXOPool[] levels = new UTXOPool[chain.size()];
+      for (int i = 0; i < levels.length; i++)
+         levels[i] = chain.get(levels.length - 1 - i);
+      return new EntrySpliterator(levels, 0, levels.length);
+   }
+   
+   // Returns a stream of the (UTXO, output) entries of the pool
+   public Stream<Map.Entry<UTXO, Transaction.Output>> entries(boolean parallel) {
+      return StreamSupport.stream(spliterator(), parallel);
+   }
+   
+   // Returns the total value of the UTXOs in the pool in base units, each
+   // rounded to the nearest unit and summed in parallel. Throws
+   // ArithmeticException on overflow.
+   public long getTotalAmount() {
+      return entries(true).mapToLong(e -> Amount.round(e.getValue().value)).reduce(0, Amount::add);
+   }
+   
+   // Returns the number of UTXOs in the pool whose output satisfies <p>,
+   // counted in parallel
+   public long count(Predicate<? super Transaction.Output> p) {
+      return entries(true).filter(e -> p.test(e.getValue())).count();
+   }
+   
+   /* Returns the number of UTXOs per value bucket, counted in parallel:
+    * bucket 0 holds amounts below bounds[0], bucket i amounts in
+    * [bounds[i-1], bounds[i]) and the last bucket amounts from
+    * bounds[bounds.length-1] up. <bounds> are ascending base units.
+    */
+   public long[] getValueHistogram(final long[] bounds) {
+      return entries(true).collect(() -> new long[bounds.length + 1],
+            (hist, e) -> hist[bucketOf(bounds, Amount.round(e.getValue().value))]++,
+            (a, b) -> {
+               for (int i = 0; i < a.length; i++)
+                  a[i] += b[i];
+            });
+   }
+   
+   private static int bucketOf(long[] bounds, long value) {
+      int i = Arrays.binarySearch(bounds, value);
+      return i >= 0 ? i + 1 : -i - 1;
    }
    
    // Returns an ArrayList of all UTXOs in the pool
    public ArrayList<UTXO> getAllUTXO() {
       Set<UTXO> setUTXO = H.keySet();
       ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
+      if (base != null)
+         for (UTXO ut : base.getAllUTXO())
+            if (!removed.contains(ut) && !H.containsKey(ut))
+               allUTXO.add(ut);
       for (UTXO ut : setUTXO) {
          allUTXO.add(ut);
       }
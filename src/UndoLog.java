@@ -0,0 +1,199 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/* On-disk undo records for the blocks of the main chain, one file per
+ * height in a directory. A record holds what is needed to take its block
+ * off the UTXO set (the outputs it spent, with their values, and the keys
+ * of the outputs it created) plus the block's transactions, so they can
+ * go back to the transaction pool. Only the last maxDepth heights are
+ * kept; the heap holds just their hashes.
+ */
+public class UndoLog {
+   private static final int RECORD_MAGIC = 0x554e444f;
+
+   /* an undo record read back from disk. The created outputs of diff come
+    * without values, so it can only be disconnected.
+    */
+   public static class Record {
+      public final BlockDiff diff;
+      public final byte[] coinbaseHash;
+      public final ArrayList<Transaction> txs;
+
+      public Record(BlockDiff diff, byte[] coinbaseHash, ArrayList<Transaction> txs) {
+         this.diff = diff;
+         this.coinbaseHash = coinbaseHash;
+         this.txs = txs;
+      }
+   }
+
+   private File dir;
+   private int maxDepth;
+   // main chain block hash per logged height, and the reverse
+   private HashMap<Integer, ByteArrayWrapper> hashes;
+   private HashMap<ByteArrayWrapper, Integer> heights;
+
+   public UndoLog(File dir, int maxDepth) throws IOException {
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("cannot create " + dir);
+      this.dir = dir;
+      this.maxDepth = maxDepth;
+      hashes = new HashMap<Integer, ByteArrayWrapper>();
+      heights = new HashMap<ByteArrayWrapper, Integer>();
+   }
+
+   public int getMaxDepth() {
+      return maxDepth;
+   }
+
+   // Writes the record of block <b> at <height>, replacing whatever was
+   // logged there, and drops records more than maxDepth below it
+   public void put(int height, Block b, BlockDiff diff) throws IOException {
+      remove(height);
+      File file = fileOf(height);
+      File tmp = new File(file.getPath() + ".tmp");
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+         out.writeInt(RECORD_MAGIC);
+         writeBytes(out, b.getHash());
+         writeBytes(out, b.getCoinbase().getHash());
+         out.writeInt(diff.getSpent().size());
+         for (Map.Entry<UTXO, Transaction.Output> e : diff.getSpent().entrySet()) {
+            writeUTXO(out, e.getKey());
+            out.writeDouble(e.getValue().value);
+            writeBytes(out, Address.exponentBytes(e.getValue().address));
+            writeBytes(out, Address.modulusBytes(e.getValue().address));
+         }
+         out.writeInt(diff.getCreated().size());
+         for (UTXO ut : diff.getCreated().keySet())
+            writeUTXO(out, ut);
+         out.writeInt(b.getTransactions().size());
+         for (Transaction tx : b.getTransactions())
+            writeBytes(out, tx.serialize());
+      } finally {
+         out.close();
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      ByteArrayWrapper hash = new ByteArrayWrapper(b.getHash());
+      hashes.put(height, hash);
+      heights.put(hash, height);
+      for (int h = height - maxDepth; hashes.containsKey(h); h--)
+         remove(h);
+   }
+
+   // Reads the record logged at <height>
+   public Record read(int height) throws IOException {
+      ByteArrayWrapper hash = hashes.get(height);
+      if (hash == null)
+         throw new IOException("no undo record at height " + height);
+      return read(height, hash);
+   }
+
+   /* Reads the record of block <hash> at <height>, failing if another
+    * block's record is there. Touches no state of the log but its files,
+    * so it may run while another thread puts or drops records.
+    */
+   public Record read(int height, ByteArrayWrapper hash) throws IOException {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileOf(height))));
+      try {
+         if (in.readInt() != RECORD_MAGIC || !hash.equals(new ByteArrayWrapper(readBytes(in))))
+            throw new IOException(fileOf(height) + " is not the undo record of its block");
+         byte[] coinbaseHash = readBytes(in);
+         BlockDiff diff = new BlockDiff();
+         // spent outputs need an owning transaction to be created
+         Transaction holder = new Transaction();
+         int nSpent = in.readInt();
+         for (int i = 0; i < nSpent; i++) {
+            UTXO ut = readUTXO(in);
+            double value = in.readDouble();
+            BigInteger exponent = new BigInteger(readBytes(in));
+            holder.addOutput(value, new RSAKey(exponent, new BigInteger(readBytes(in))));
+            diff.getSpent().put(ut, holder.getOutput(i));
+         }
+         int nCreated = in.readInt();
+         for (int i = 0; i < nCreated; i++)
+            diff.getCreated().put(readUTXO(in), null);
+         int nTxs = in.readInt();
+         ArrayList<Transaction> txs = new ArrayList<Transaction>();
+         for (int i = 0; i < nTxs; i++)
+            txs.add(Transaction.deserialize(readBytes(in)));
+         return new Record(diff, coinbaseHash, txs);
+      } catch (RuntimeException x) {
+         throw new IOException(fileOf(height) + " is corrupt", x);
+      } finally {
+         in.close();
+      }
+   }
+
+   // Returns the hash of the main chain block logged at <height>, or null
+   public ByteArrayWrapper hashAt(int height) {
+      return hashes.get(height);
+   }
+
+   // Returns the height of main chain block <blockHash>, or -1 if it has no
+   // record
+   public int heightOf(byte[] blockHash) {
+      Integer h = heights.get(new ByteArrayWrapper(blockHash));
+      return h == null ? -1 : h;
+   }
+
+   // Drops every record above <height>
+   public void truncate(int height) {
+      for (int h = height + 1; hashes.containsKey(h); h++)
+         remove(h);
+   }
+
+   // Drops every record
+   public void clear() {
+      for (Integer h : new ArrayList<Integer>(hashes.keySet()))
+         remove(h);
+   }
+
+   private void remove(int height) {
+      ByteArrayWrapper hash = hashes.remove(height);
+      if (hash != null) {
+         heights.remove(hash);
+         fileOf(height).delete();
+      }
+   }
+
+   private File fileOf(int height) {
+      return new File(dir, height + ".undo");
+   }
+
+   private static void writeUTXO(DataOutputStream out, UTXO ut) throws IOException {
+      writeBytes(out, ut.getTxHash());
+      out.writeInt(ut.getIndex());
+   }
+
+   private static UTXO readUTXO(DataInputStream in) throws IOException {
+      byte[] txHash = readBytes(in);
+      return new UTXO(txHash, in.readInt());
+   }
+
+   private static void writeBytes(DataOutputStream out, byte[] a) throws IOException {
+      out.writeInt(a.length);
+      out.write(a);
+   }
+
+   private static byte[] readBytes(DataInputStream in) throws IOException {
+      int len = in.readInt();
+      if (len < 0 || len > TxArena.SLAB_SIZE)
+         throw new IOException("corrupt undo record");
+      byte[] a = new byte[len];
+      in.readFully(a);
+      return a;
+   }
+}